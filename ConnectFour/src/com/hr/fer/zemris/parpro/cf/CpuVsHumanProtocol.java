@@ -14,11 +14,30 @@ public class CpuVsHumanProtocol<S, M, P> implements GameProtocol<S, M, P> {
     private final Game<S, M, P> game;
     private final Evaluator<S, M, P> evaluator;
     private final P human;
+    
+    // time CPU may spend on a single move, 0 if evaluator searches to fixed depth
+    private final long moveTimeMillis;
 
     public CpuVsHumanProtocol(Game<S, M, P> game, Evaluator<S, M, P> evaluator,
             P human) {
+        this(game, evaluator, human, 0);
+    }
+    
+    /**
+     * Creates the protocol in which CPU has limited time for each move. <br>
+     * The time is split evenly among the legal moves and each of them is
+     * evaluated by iterative deepening.
+     * 
+     * @param game game being played
+     * @param evaluator evaluator used by CPU
+     * @param human player controlled by human
+     * @param moveTimeMillis time CPU may spend on a move, 0 for fixed depth
+     */
+    public CpuVsHumanProtocol(Game<S, M, P> game, Evaluator<S, M, P> evaluator,
+            P human, long moveTimeMillis) {
         this.game = game;
         this.evaluator = evaluator;
+        this.moveTimeMillis = moveTimeMillis;
 
         if (!human.equals(game.getFirstPlayer())
                 && !human.equals(game.getSecondPlayer())) {
@@ -82,19 +101,24 @@ public class CpuVsHumanProtocol<S, M, P> implements GameProtocol<S, M, P> {
                 game.performMove(legalMoves.get(chosenMoveIndex - 1));
             } else {
                 M bestMove = legalMoves.get(0);
-                double bestEval = -1;
-                for (M legalMove : legalMoves) {
-                    double eval = 0;
-                    try {
-                        eval = evaluator.evaluate(legalMove);
-                    } catch (DuringEvaluationException ex) {
-                        System.err.println(ex.getMessage());
-                        System.exit(1);
+                try {
+                    if (moveTimeMillis > 0) {
+                        double bestEval = -1;
+                        for (M legalMove : legalMoves) {
+                            double eval = evaluator.evaluateWithin(legalMove,
+                                    Math.max(1, moveTimeMillis / legalMoves.size()));
+                            if (eval > bestEval) {
+                                bestEval = eval;
+                                bestMove = legalMove;
+                            }
+                        }
+                    } else {
+                        // all the moves in one search
+                        bestMove = evaluator.analyze().getBestMove();
                     }
-                    if (eval > bestEval) {
-                        bestEval = eval;
-                        bestMove = legalMove;
-                    } 
+                } catch (DuringEvaluationException ex) {
+                    System.err.println(ex.getMessage());
+                    System.exit(1);
                 }
                 System.out.format("CPU (%s) plays : %s\n", game.getCurrPlayer(), bestMove);
                 game.performMove(bestMove);
@@ -104,6 +128,10 @@ public class CpuVsHumanProtocol<S, M, P> implements GameProtocol<S, M, P> {
         System.out.println();
         System.out.println("FINAL state of the game:");
         System.out.println(game.getCurrState().toString().replaceAll("(?m)^", "  "));
-        System.out.format("GAME OVER! %s won.\nBye!\n", game.getPrevPlayer());
+        if (game.isDraw()) {
+            System.out.println("GAME OVER! It's a draw.\nBye!");
+        } else {
+            System.out.format("GAME OVER! %s won.\nBye!\n", game.getPrevPlayer());
+        }
     }
 }
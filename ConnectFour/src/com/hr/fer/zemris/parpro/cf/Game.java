@@ -1,8 +1,8 @@
 package com.hr.fer.zemris.parpro.cf;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
 
 /**
  * Class abstracting a 
@@ -40,7 +40,9 @@ public abstract class Game<S, M, P> implements Serializable {
     
     private P currPlayer;
     
-    private final Stack<M> movesHistory;
+    // indices of the moves made so far, see getMove(int)
+    private int[] movesHistory;
+    private int movesCnt;
     
     /**
      * Base constructor for creating "Game"-objects. <br>
@@ -59,9 +61,34 @@ public abstract class Game<S, M, P> implements Serializable {
         currPlayer = firstPlayer;
         
         // moves history gets initialized
-        movesHistory = new Stack<>();
+        movesHistory = new int[16];
+        movesCnt = 0;
     }
     
+    /**
+     * Copy constructor for use by {@link #copy()} in derived classes. <br>
+     * Players are shared, the moves history is copied.
+     * 
+     * @param other game to be copied
+     */
+    protected Game(Game<S, M, P> other) {
+        this.firstPlayer = other.firstPlayer;
+        this.secondPlayer = other.secondPlayer;
+        this.currPlayer = other.currPlayer;
+        this.movesHistory = Arrays.copyOf(other.movesHistory, other.movesHistory.length);
+        this.movesCnt = other.movesCnt;
+    }
+    
+    
+    /**
+     * Creates an independent copy of the game in its current state. <br>
+     * Moves made on the copy don't affect the original, so copies can be
+     * searched by different threads at the same time.
+     * 
+     * @return copy of the game
+     */
+    public abstract Game<S, M, P> copy();
+    
     /**
      * Getter that returns current state object.
      * 
@@ -76,8 +103,49 @@ public abstract class Game<S, M, P> implements Serializable {
      * @return all possible legal moves (as a list object)
      */
     public abstract List<M> getLegalMoves();
-    
-    
+
+
+    /**
+     * Allocation-free alternative to {@link #getLegalMoves()}. <br>
+     * Every move of the concrete game is identified by a small non-negative
+     * index and bit <code>i</code> of the returned mask is set if the move with
+     * index <code>i</code> is legal in the current state. Search engines can
+     * walk the mask with {@link Long#numberOfTrailingZeros(long)} and map the
+     * indices back to moves using {@link #getMove(int)}.
+     *
+     * @return bitmask of legal move indices
+     */
+    public abstract long getLegalMoveMask();
+
+
+    /**
+     * Maps a move index (as used by {@link #getLegalMoveMask()}) to the move
+     * object. Implementations should not allocate a new object on each call.
+     *
+     * @param moveIndex index of the move
+     * @return move object with the provided index
+     */
+    public abstract M getMove(int moveIndex);
+
+
+    /**
+     * Returns the number of distinct move indices, every index used by
+     * {@link #getLegalMoveMask()} is smaller than this.
+     *
+     * @return number of move indices
+     */
+    public abstract int getMoveIndexCnt();
+
+
+    /**
+     * Inverse of {@link #getMove(int)}.
+     *
+     * @param move move object
+     * @return index of the provided move
+     */
+    public abstract int getMoveIndex(M move);
+
+
     /**
      * Makes changes to the current state by applying specified move. <br>
      * This method only serves as a template method.
@@ -97,11 +165,28 @@ public abstract class Game<S, M, P> implements Serializable {
             throw new IllegalArgumentException("You provided an illegal move!");
         }
         
+        makeMove(getMoveIndex(move));
+    }
+    
+    
+    /**
+     * Unchecked counterpart of {@link #performMove(Object)} meant for search
+     * engines. <br>
+     * Neither legality of the move nor terminality of the current state is
+     * checked, the caller is expected to pick moves from
+     * {@link #getLegalMoveMask()} and to stop at terminal states.
+     * 
+     * @param moveIndex index of the move to be made
+     */
+    public final void makeMove(int moveIndex) {
         // apply the move 
-        changeState(move);
+        changeState(moveIndex);
         
         // record the move
-        movesHistory.push(move);
+        if (movesCnt == movesHistory.length) {
+            movesHistory = Arrays.copyOf(movesHistory, 2 * movesCnt);
+        }
+        movesHistory[movesCnt++] = moveIndex;
         
         // change turn
         currPlayer = getTheOtherPlayer();
@@ -115,9 +200,9 @@ public abstract class Game<S, M, P> implements Serializable {
      * Stupidity of Java protected access modifier is visible here. <br>
      * This method should only be visible to subclasses of a "Game"-class.
      * 
-     * @param move Move object that ignites the change.
+     * @param moveIndex index of the move that ignites the change
      */
-    protected abstract void changeState(M move);
+    protected abstract void changeState(int moveIndex);
     
     
     /**
@@ -131,19 +216,30 @@ public abstract class Game<S, M, P> implements Serializable {
      * @return true if there are moves to be canceled, false otherwise
      */
     public final boolean undoMove() {
-        if (movesHistory.empty()) {
+        if (movesCnt == 0) {
             // we're already done!
             return false;
         }
         
-        cancelLastChangeToState();
-        movesHistory.pop();
-        currPlayer = getTheOtherPlayer();
+        unmakeMove();
         
         return true;
     }
     
     
+    /**
+     * Unchecked counterpart of {@link #undoMove()} meant for search engines.
+     * <br>
+     * Cancels the last move made, at least one move has to be made before
+     * calling this method.
+     */
+    public final void unmakeMove() {
+        cancelLastChangeToState();
+        movesCnt--;
+        currPlayer = getTheOtherPlayer();
+    }
+    
+    
     /**
      * Abstract method that nullifies the changes last move has made to the state
      * of the game.
@@ -171,6 +267,54 @@ public abstract class Game<S, M, P> implements Serializable {
     public abstract boolean isTerminalState(S state);
     
     
+    /**
+     * Returns a 64-bit key of the current position. <br>
+     * Equal positions have equal keys. The key doesn't depend on identity hash
+     * codes or anything else specific to a single JVM, so it can be used by
+     * caches, task maps and wire protocols shared between processes.
+     * 
+     * @return key of the current position
+     */
+    public abstract long getPositionKey();
+    
+    
+    /**
+     * Returns a key shared by all the positions equivalent to the current one
+     * under the symmetries of the game. Equivalent positions have the same
+     * value, so caches keyed this way hold a single entry per class. <br>
+     * The default implementation is for games without symmetries.
+     * 
+     * @return canonical key of the current position
+     */
+    public long getCanonicalPositionKey() {
+        return getPositionKey();
+    }
+    
+    
+    /**
+     * Checks if the current position is mapped onto itself by a symmetry of
+     * the game, in which case {@link #getMirroredMoveIndex(int)} pairs up
+     * moves of equal value.
+     * 
+     * @return true if the position is symmetric, false otherwise
+     */
+    public boolean isSymmetricPosition() {
+        return false;
+    }
+    
+    
+    /**
+     * Returns the index of the move that mirrors the given one. <br>
+     * The default implementation is for games without symmetries.
+     * 
+     * @param moveIndex index of the move
+     * @return index of the mirrored move
+     */
+    public int getMirroredMoveIndex(int moveIndex) {
+        return moveIndex;
+    }
+    
+    
     /**
      * Method that checks if the game is over. <br>
      * It provides the obvious default implementation that simply checks weather
@@ -185,6 +329,18 @@ public abstract class Game<S, M, P> implements Serializable {
     }
     
     
+    /**
+     * Method that checks if the game has ended without a winner. <br>
+     * The default implementation assumes the concrete game cannot end in a
+     * draw, games that can should override it.
+     * 
+     * @return true if the game is over and nobody has won, false otherwise
+     */
+    public boolean isDraw() {
+        return false;
+    }
+    
+    
     /**
      * Method of less importance that returns the welcome message that can be
      * printed out when the game starts.
@@ -203,7 +359,7 @@ public abstract class Game<S, M, P> implements Serializable {
     public void resetGame() {
         // this one starts the game
         currPlayer = firstPlayer;
-        movesHistory.clear();
+        movesCnt = 0;
         
         reset();
     }
@@ -263,7 +419,7 @@ public abstract class Game<S, M, P> implements Serializable {
      * @return previous player, null if no moves have been made
      */
     public P getPrevPlayer() {
-        if (movesHistory.empty()) {
+        if (movesCnt == 0) {
             return null;
         }
         return getTheOtherPlayer();
@@ -278,10 +434,52 @@ public abstract class Game<S, M, P> implements Serializable {
      * @return last move, null if no moves have been made
      */
     public M getLastMove() {
-        if (movesHistory.empty()) {
+        if (movesCnt == 0) {
             return null;
         }
-        return movesHistory.peek();
+        return getMove(movesHistory[movesCnt - 1]);
+    }
+    
+    
+    /**
+     * Getter that returns the number of moves made since the start of the
+     * game.
+     * 
+     * @return number of moves made
+     */
+    public int getMovesCnt() {
+        return movesCnt;
+    }
+    
+    
+    /**
+     * Getter that returns index of the move made at the given ply. Together
+     * with {@link #getMovesCnt()} it describes the whole history, which is
+     * enough to recreate the game elsewhere.
+     * 
+     * @param ply number of moves made before the requested one
+     * @return index of the move
+     */
+    public int getMoveIndexAt(int ply) {
+        if (ply < 0 || ply >= movesCnt) {
+            throw new IndexOutOfBoundsException("No move was made at ply " + ply);
+        }
+        return movesHistory[ply];
+    }
+    
+    
+    /**
+     * Getter that returns index of the last move made.
+     * If the game has just started and no moves have been made, -1 will be
+     * returned.
+     * 
+     * @return index of the last move, -1 if no moves have been made
+     */
+    public int getLastMoveIndex() {
+        if (movesCnt == 0) {
+            return -1;
+        }
+        return movesHistory[movesCnt - 1];
     }
 
 }
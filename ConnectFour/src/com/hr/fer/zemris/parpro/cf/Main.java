@@ -2,12 +2,21 @@ package com.hr.fer.zemris.parpro.cf;
 
 import com.hr.fer.zemris.parpro.cf.concretegames.Board;
 import com.hr.fer.zemris.parpro.cf.concretegames.ConnectFourBuilder;
-import com.hr.fer.zemris.parpro.cf.eval.core.BruteForceEvaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.EvaluatorKind;
+import com.hr.fer.zemris.parpro.cf.eval.core.LazySmpEvaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.SharedTranspositionTable;
+import com.hr.fer.zemris.parpro.cf.eval.core.TranspositionTable;
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCreationException;
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.DuringEvaluationException;
 import com.hr.fer.zemris.parpro.cf.eval.core.Evaluator;
 import com.hr.fer.zemris.parpro.cf.eval.core.RemoteEvaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.RootAnalysis;
+import com.hr.fer.zemris.parpro.cf.eval.core.ShardedRemoteEvaluator;
+import com.hr.fer.zemris.parpro.cf.mpistuff.TopTreeCheck;
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCloseException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -16,22 +25,75 @@ import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCloseException;
 public class Main {
 
     public static void main(String[] args) {
-        // testGame();
+        // "--local <engine>" plays against a local engine instead
+        if (args.length == 2 && args[0].equals("--local")) {
+            testGame(EvaluatorKind.fromName(args[1]));
+            return;
+        }
+        // "--smp-bench <depth> <max threads>" measures Lazy SMP scaling
+        if (args.length == 3 && args[0].equals("--smp-bench")) {
+            benchLazySmp(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        // "--top-tree-check <engine> <positions> <depth>" checks the master's
+        // top tree against a sequential search, no MPI needed
+        if (args.length == 4 && args[0].equals("--top-tree-check")) {
+            boolean ok = new TopTreeCheck(EvaluatorKind.fromName(args[1]),
+                    Integer.parseInt(args[3])).run(Integer.parseInt(args[2]));
+            System.exit(ok ? 0 : 1);
+        }
+        // "--sharded <host:port>..." spreads the analysis over several servers
+        if (args.length >= 2 && args[0].equals("--sharded")) {
+            testSharded(args);
+            return;
+        }
         testMPI(args);
 
     }
     
-    public static void testGame() {
+    public static void testGame(EvaluatorKind evaluatorKind) {
         ConnectFourBuilder cfb = new ConnectFourBuilder();
         Game<Board, Integer, String> cf = cfb.createConnectFour();
         Evaluator<Board, Integer, String> evaluator = 
-                new BruteForceEvaluator<>(cf, 7);
+                evaluatorKind.create(cf, 7, null);
         GameProtocol<Board, Integer, String> prot = 
                 new CpuVsHumanProtocol<>(cf, evaluator, "Bob");
         prot.startGame();
         
     }
 
+    /**
+     * Analyzes the starting position with 1, 2, ... maxThreads Lazy SMP
+     * threads and prints the speedup over a single thread together with the
+     * hit rate of the shared table.
+     * 
+     * @param depth search depth
+     * @param maxThreads largest number of threads tried
+     */
+    public static void benchLazySmp(int depth, int maxThreads) {
+        ConnectFourBuilder cfb = new ConnectFourBuilder();
+        Game<Board, Integer, String> cf = cfb.createConnectFour();
+        long singleThreadTime = 0;
+        for (int threadCnt = 1; threadCnt <= maxThreads; threadCnt++) {
+            SharedTranspositionTable table = new SharedTranspositionTable(
+                    LazySmpEvaluator.DEFAULT_TABLE_BYTES,
+                    TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED);
+            try (LazySmpEvaluator<Board, Integer, String> evaluator =
+                    new LazySmpEvaluator<>(cf, depth, threadCnt, table)) {
+                long startTime = System.nanoTime();
+                RootAnalysis<Integer> analysis = evaluator.analyze();
+                long time = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+                if (threadCnt == 1) {
+                    singleThreadTime = time;
+                }
+                System.out.format("threads %2d: %6d ms, speedup %.2f, nodes %d,"
+                        + " table hit rate %.3f, best move %d%n",
+                        threadCnt, time, singleThreadTime / (double) time,
+                        evaluator.getNodeCnt(), table.getHitRate(), analysis.getBestMove());
+            }
+        }
+    }
+
     public static void testMPI(String[] args) {
         // default server values
         String hostName = "local";
@@ -71,13 +133,50 @@ public class Main {
         try (
                 Evaluator<Board, Integer, String> evaluator
                 = new RemoteEvaluator<>(cf, maxDepth, hostName, port);) {
-            for (Integer move : cf.getLegalMoves()) {
-                double eval = evaluator.evaluate(move);
-                System.out.format("Stupac %d, vrijednost: %f\n", move, eval);
+            printAnalysis(evaluator.analyze());
+        } catch (EvaluatorCreationException | EvaluatorCloseException | DuringEvaluationException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Analyzes the starting position on all the given servers at once.
+     *
+     * @param args "--sharded" followed by host:port of every server
+     */
+    public static void testSharded(String[] args) {
+        List<InetSocketAddress> endpoints = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            int colon = args[i].lastIndexOf(':');
+            try {
+                endpoints.add(new InetSocketAddress(args[i].substring(0, colon),
+                        Integer.parseInt(args[i].substring(colon + 1))));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+                System.err.println("Server must be given as host:port, not " + args[i]);
+                System.exit(1);
             }
+        }
+
+        ConnectFourBuilder cfb = new ConnectFourBuilder();
+        Game<Board, Integer, String> cf = cfb.createConnectFour();
+        int maxDepth = 10;
+
+        try (
+                Evaluator<Board, Integer, String> evaluator
+                = new ShardedRemoteEvaluator<>(cf, maxDepth, endpoints);) {
+            printAnalysis(evaluator.analyze());
         } catch (EvaluatorCreationException | EvaluatorCloseException | DuringEvaluationException ex) {
             System.err.println(ex.getMessage());
             System.exit(1);
         }
     }
+
+    private static void printAnalysis(RootAnalysis<Integer> analysis) {
+        for (int i = 0; i < analysis.getMoveCnt(); i++) {
+            System.out.format("Stupac %d, vrijednost: %f\n",
+                    analysis.getMoves().get(i), analysis.getScore(i));
+        }
+        System.out.println("Najbolji potez: " + analysis.getBestMove());
+    }
 }
@@ -70,7 +70,11 @@ public class StandardGameProtocol<S, M, P> implements GameProtocol<S, M, P> {
         System.out.println();
         System.out.println("FINAL state of the game:");
         System.out.println(game.getCurrState().toString().replaceAll("(?m)^", "  "));
-        System.out.format("GAME OVER! %s won.\nBye!\n", game.getPrevPlayer());
+        if (game.isDraw()) {
+            System.out.println("GAME OVER! It's a draw.\nBye!");
+        } else {
+            System.out.format("GAME OVER! %s won.\nBye!\n", game.getPrevPlayer());
+        }
     }
     
 }
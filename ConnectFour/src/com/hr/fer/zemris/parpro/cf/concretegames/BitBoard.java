@@ -0,0 +1,411 @@
+package com.hr.fer.zemris.parpro.cf.concretegames;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compact representation of a Connect Four position. <br>
+ * Discs of each colour are kept in a single <code>long</code>, one bit per
+ * cell, and the number of discs in every column is tracked separately so
+ * dropping and lifting a disc are constant time operations.
+ *
+ * <p>
+ * Bits are laid out column by column, starting from the bottom cell of the
+ * leftmost column. Every column takes <code>rowCnt + 1</code> bits, the extra
+ * (always empty) bit on top of each column acts as a separator so shifted
+ * patterns never wrap from one column into the next. Consequently the board
+ * has to satisfy <code>colCnt * (rowCnt + 1) &lt;= 64</code>.
+ * </p>
+ *
+ * <p>
+ * Yellow (the first player) always makes the first move, so the colour of the
+ * disc that is dropped next is determined by the parity of the disc count.
+ * </p>
+ *
+ * <p>
+ * Every position also carries a 64-bit Zobrist key which is updated along
+ * with each drop and lift. Keys are generated from a fixed seed, so the same
+ * position has the same key in every JVM and keys can be sent between MPI
+ * ranks or stored. Key of the left-right mirrored position is maintained as
+ * well, since a position and its mirror image have the same value.
+ * </p>
+ *
+ * @author marko
+ */
+public final class BitBoard implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long ZOBRIST_SEED = 0x436F6E6E65637434L;
+
+    // one random key per colour and bit index
+    private static final long[][] ZOBRIST = new long[2][Long.SIZE];
+
+    static {
+        long state = ZOBRIST_SEED;
+        for (int colour = 0; colour < 2; colour++) {
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                // SplitMix64, fully specified here so keys never depend on the JVM
+                state += 0x9E3779B97F4A7C15L;
+                long z = state;
+                z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+                z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+                ZOBRIST[colour][bit] = z ^ (z >>> 31);
+            }
+        }
+    }
+
+    private final int rowCnt;
+    private final int colCnt;
+
+    // number of bits taken by each column (separator bit included)
+    private final int colStride;
+
+    private long yellowDiscs;
+    private long redDiscs;
+
+    private final int[] heights;
+    private int discCnt;
+
+    private long key;
+    private long mirrorKey;
+
+    public BitBoard(int rowCnt, int colCnt) {
+        if (rowCnt < 1 || colCnt < 1) {
+            throw new IllegalArgumentException("Board must have at least one row and column.");
+        }
+        if (colCnt * (rowCnt + 1) > Long.SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Board %dx%d does not fit into a 64-bit bitboard.", rowCnt, colCnt));
+        }
+        this.rowCnt = rowCnt;
+        this.colCnt = colCnt;
+        this.colStride = rowCnt + 1;
+        this.heights = new int[colCnt];
+    }
+
+    private BitBoard(BitBoard other) {
+        this.rowCnt = other.rowCnt;
+        this.colCnt = other.colCnt;
+        this.colStride = other.colStride;
+        this.yellowDiscs = other.yellowDiscs;
+        this.redDiscs = other.redDiscs;
+        this.heights = Arrays.copyOf(other.heights, other.heights.length);
+        this.discCnt = other.discCnt;
+        this.key = other.key;
+        this.mirrorKey = other.mirrorKey;
+    }
+
+    public int getRowCnt() {
+        return rowCnt;
+    }
+
+    public int getColCnt() {
+        return colCnt;
+    }
+
+    public long getYellowDiscs() {
+        return yellowDiscs;
+    }
+
+    public long getRedDiscs() {
+        return redDiscs;
+    }
+
+    /**
+     * Returns the number of discs currently in the given column.
+     *
+     * @param col column index
+     * @return height of the column
+     */
+    public int getHeight(int col) {
+        return heights[col];
+    }
+
+    public int getDiscCnt() {
+        return discCnt;
+    }
+
+    /**
+     * Returns the Zobrist key of the position. <br>
+     * Key is maintained incrementally and is the same in every JVM.
+     *
+     * @return 64-bit position key
+     */
+    public long getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the Zobrist key the position would have if it was mirrored
+     * left to right.
+     *
+     * @return 64-bit key of the mirrored position
+     */
+    public long getMirrorKey() {
+        return mirrorKey;
+    }
+
+    /**
+     * Returns the key shared by the position and its mirror image.
+     *
+     * @return smaller of the key and the mirrored key
+     */
+    public long getCanonicalKey() {
+        return Math.min(key, mirrorKey);
+    }
+
+    /**
+     * Checks if the position is its own mirror image.
+     *
+     * @return true if the position is left-right symmetric, false otherwise
+     */
+    public boolean isSymmetric() {
+        if (key != mirrorKey) {
+            return false;
+        }
+        // equal keys are only a strong hint, the discs settle it
+        return mirror(yellowDiscs) == yellowDiscs && mirror(redDiscs) == redDiscs;
+    }
+
+    /**
+     * Mirrors the set of discs left to right.
+     *
+     * @param discs discs laid out as in this bitboard
+     * @return mirrored discs
+     */
+    public long mirror(long discs) {
+        long colMask = (1L << colStride) - 1;
+        long mirrored = 0;
+        for (int col = 0; col < colCnt; col++) {
+            long colDiscs = (discs >>> (col * colStride)) & colMask;
+            mirrored |= colDiscs << ((colCnt - 1 - col) * colStride);
+        }
+        return mirrored;
+    }
+
+    /**
+     * Checks if the column can take one more disc.
+     *
+     * @param col column index
+     * @return true if the column isn't full, false otherwise
+     */
+    public boolean canDrop(int col) {
+        return col >= 0 && col < colCnt && heights[col] < rowCnt;
+    }
+
+    /**
+     * Drops the disc of the player on turn into the given column. <br>
+     * Legality of the move is not checked.
+     *
+     * @param col column index
+     */
+    public void drop(int col) {
+        int bitIndex = col * colStride + heights[col];
+        long bit = 1L << bitIndex;
+        int colour = discCnt & 1;
+        if (colour == 0) {
+            yellowDiscs |= bit;
+        } else {
+            redDiscs |= bit;
+        }
+        key ^= ZOBRIST[colour][bitIndex];
+        mirrorKey ^= ZOBRIST[colour][bitIndex + (colCnt - 1 - 2 * col) * colStride];
+        heights[col]++;
+        discCnt++;
+    }
+
+    /**
+     * Removes the top disc from the given column. <br>
+     * The column is assumed to be non-empty.
+     *
+     * @param col column index
+     */
+    public void lift(int col) {
+        heights[col]--;
+        discCnt--;
+        int bitIndex = col * colStride + heights[col];
+        key ^= ZOBRIST[discCnt & 1][bitIndex];
+        mirrorKey ^= ZOBRIST[discCnt & 1][bitIndex + (colCnt - 1 - 2 * col) * colStride];
+        long bit = ~(1L << bitIndex);
+        yellowDiscs &= bit;
+        redDiscs &= bit;
+    }
+
+    /**
+     * Returns the label of the cell in the given row and column. <br>
+     * Rows are indexed from the top, same as in {@link Board}.
+     *
+     * @param row row index (0 is the top row)
+     * @param col column index
+     * @return label of the cell
+     */
+    public Board.CellLabel getCellLabel(int row, int col) {
+        long bit = cellBit(row, col);
+        if ((yellowDiscs & bit) != 0) {
+            return Board.CellLabel.Yellow;
+        }
+        if ((redDiscs & bit) != 0) {
+            return Board.CellLabel.Red;
+        }
+        return Board.CellLabel.Empty;
+    }
+
+    /**
+     * Puts the given label into the cell regardless of gravity. <br>
+     * Column heights and disc count are recalculated so they stay consistent
+     * with the contents of the board.
+     *
+     * @param row row index (0 is the top row)
+     * @param col column index
+     * @param cl new label of the cell
+     */
+    public void setCellLabel(int row, int col, Board.CellLabel cl) {
+        long bit = cellBit(row, col);
+        yellowDiscs &= ~bit;
+        redDiscs &= ~bit;
+        if (cl == Board.CellLabel.Yellow) {
+            yellowDiscs |= bit;
+        } else if (cl == Board.CellLabel.Red) {
+            redDiscs |= bit;
+        }
+
+        long colDiscs = (yellowDiscs | redDiscs) >>> (col * colStride);
+        colDiscs &= (1L << rowCnt) - 1;
+        heights[col] = Long.SIZE - Long.numberOfLeadingZeros(colDiscs);
+        discCnt = Long.bitCount(yellowDiscs | redDiscs);
+        key = computeKey(yellowDiscs, redDiscs);
+        mirrorKey = computeKey(mirror(yellowDiscs), mirror(redDiscs));
+    }
+
+    private static long computeKey(long yellow, long red) {
+        long k = 0;
+        for (long rest = yellow; rest != 0; rest &= rest - 1) {
+            k ^= ZOBRIST[0][Long.numberOfTrailingZeros(rest)];
+        }
+        for (long rest = red; rest != 0; rest &= rest - 1) {
+            k ^= ZOBRIST[1][Long.numberOfTrailingZeros(rest)];
+        }
+        return k;
+    }
+
+    /**
+     * Checks if the board has no free cells left.
+     *
+     * @return true if every column is full, false otherwise
+     */
+    public boolean isFull() {
+        return discCnt == rowCnt * colCnt;
+    }
+
+    /**
+     * Checks if the disc dropped last completed four in a row. <br>
+     * Only discs of the player who made the last move are examined, so the
+     * check takes a fixed number of bitwise operations.
+     *
+     * @return true if the last move won the game, false otherwise
+     */
+    public boolean isLastMoveWinning() {
+        return hasFourInARow(((discCnt & 1) == 1) ? yellowDiscs : redDiscs);
+    }
+
+    /**
+     * Checks if the position is terminal, that is if any of the players has
+     * four in a row or if the board is full.
+     *
+     * @return true if no more moves can be made, false otherwise
+     */
+    public boolean isTerminal() {
+        return hasFourInARow(yellowDiscs) || hasFourInARow(redDiscs) || isFull();
+    }
+
+    /**
+     * Checks if the given set of discs contains four in a row. <br>
+     * For each of the four directions discs are first paired with their
+     * neighbour and then pairs with the pair two cells away. Separator bits
+     * on top of the columns are always empty, so nothing wraps around.
+     *
+     * @param discs discs of a single colour
+     * @return true if there are four connected discs, false otherwise
+     */
+    public boolean hasFourInARow(long discs) {
+        // vertical
+        long m = discs & (discs >>> 1);
+        if ((m & (m >>> 2)) != 0) {
+            return true;
+        }
+        // horizontal
+        m = discs & (discs >>> colStride);
+        if ((m & (m >>> (2 * colStride))) != 0) {
+            return true;
+        }
+        // diagonal, going up to the right
+        m = discs & (discs >>> (colStride + 1));
+        if ((m & (m >>> (2 * (colStride + 1)))) != 0) {
+            return true;
+        }
+        // diagonal, going down to the right
+        m = discs & (discs >>> (colStride - 1));
+        return (m & (m >>> (2 * (colStride - 1)))) != 0;
+    }
+
+    /**
+     * Checks if the cell in the given row and column is occupied in the
+     * provided set of discs. <br>
+     * Indices are not checked, callers are expected to stay on the board.
+     *
+     * @param discs discs of one (or both) colours
+     * @param row row index (0 is the top row)
+     * @param col column index
+     * @return true if the cell is set, false otherwise
+     */
+    public boolean isSet(long discs, int row, int col) {
+        return (discs & (1L << (col * colStride + (rowCnt - 1 - row)))) != 0;
+    }
+
+    private long cellBit(int row, int col) {
+        if (row < 0 || row >= rowCnt || col < 0 || col >= colCnt) {
+            throw new IndexOutOfBoundsException(
+                    String.format("Cell (%d, %d) is outside of the board.", row, col));
+        }
+        return 1L << (col * colStride + (rowCnt - 1 - row));
+    }
+
+    public void reset() {
+        yellowDiscs = 0;
+        redDiscs = 0;
+        Arrays.fill(heights, 0);
+        discCnt = 0;
+        key = 0;
+        mirrorKey = 0;
+    }
+
+    public BitBoard copy() {
+        return new BitBoard(this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null) {
+            return false;
+        }
+        if (o.getClass() != getClass()) {
+            return false;
+        }
+
+        BitBoard other = (BitBoard) o;
+
+        return rowCnt == other.rowCnt && colCnt == other.colCnt
+                && yellowDiscs == other.yellowDiscs && redDiscs == other.redDiscs;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 47 * hash + Long.hashCode(key);
+        hash = 47 * hash + rowCnt;
+        hash = 47 * hash + colCnt;
+        return hash;
+    }
+
+}
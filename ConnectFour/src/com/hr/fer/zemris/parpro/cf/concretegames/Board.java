@@ -1,10 +1,11 @@
-
 package com.hr.fer.zemris.parpro.cf.concretegames;
 
 import java.io.Serializable;
-import java.util.Arrays;
 
 /**
+ * Cell-oriented view of a {@link BitBoard}. <br>
+ * The board doesn't hold any cells of its own, all reads and writes go
+ * straight to the underlying bitboard.
  *
  * @author marko
  */
@@ -12,75 +13,88 @@ public final class Board implements Serializable {
     public enum CellLabel {
         Empty, Yellow, Red;
     }
-    
-    private final CellLabel[][] grid;
-    private final int rowCnt;
-    private final int colCnt;
-    
+
+    private final BitBoard position;
+
     public Board(int rowCnt, int colCnt) {
-        grid = new CellLabel[rowCnt][colCnt];
-        this.rowCnt = rowCnt;
-        this.colCnt = colCnt;
-        
-        reset();
-    }
-    
-    private Board(CellLabel[][] grid) {
-        this.grid = grid;
-        this.rowCnt = grid.length;
-        this.colCnt = grid[0].length;
-    }
-    
+        this(new BitBoard(rowCnt, colCnt));
+    }
+
+    Board(BitBoard position) {
+        this.position = position;
+    }
+
+    /**
+     * Returns the bitboard this board is a view of.
+     *
+     * @return underlying position
+     */
+    public BitBoard getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns a snapshot of the cells. <br>
+     * Changes made to the returned array aren't reflected on the board.
+     *
+     * @return copy of the cells, row 0 being the top row
+     */
     public CellLabel[][] getGrid() {
+        int rowCnt = getRowCnt();
+        int colCnt = getColCnt();
+        CellLabel[][] grid = new CellLabel[rowCnt][colCnt];
+        for (int i = 0; i < rowCnt; i++) {
+            for (int j = 0; j < colCnt; j++) {
+                grid[i][j] = position.getCellLabel(i, j);
+            }
+        }
         return grid;
     }
-    
+
     public int getRowCnt() {
-        return rowCnt;
+        return position.getRowCnt();
     }
-    
+
     public int getColCnt() {
-        return colCnt;
+        return position.getColCnt();
     }
-    
+
     public void setCellLabel(int i, int j, CellLabel cl) {
-        grid[i][j] = cl;
+        position.setCellLabel(i, j, cl);
     }
-    
+
     public CellLabel getCellLabel(int i, int j) {
-        return grid[i][j];
+        return position.getCellLabel(i, j);
     }
-    
+
     public CellLabel getTopRowCellLabel(int j) {
-        return grid[0][j];
+        return position.getCellLabel(0, j);
     }
-    
+
     public void reset() {
-        for (int i = 0; i < rowCnt; i++) {
-            for (int j = 0; j < colCnt; j++) {
-                grid[i][j] = CellLabel.Empty;
-            }
-        }
+        position.reset();
     }
-    
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        
+        int rowCnt = getRowCnt();
+        int colCnt = getColCnt();
+
         for (int i = 0; i < rowCnt; i++) {
             for (int j = 0; j < colCnt; j++) {
-                sb.append(cellLabelChar(grid[i][j]));
+                sb.append(cellLabelChar(position.getCellLabel(i, j)));
                 if(j != colCnt - 1) {
                     sb.append(" ");
                 } else {
                     sb.append("\n");
-                }   
+                }
             }
         }
-        
+
         return sb.toString();
     }
-    
+
     private static String cellLabelChar(CellLabel cl) {
         switch(cl) {
             case Empty:
@@ -91,7 +105,7 @@ public final class Board implements Serializable {
                 return "R";
         }
     }
-    
+
     @Override
     public boolean equals(Object o) {
         if (o == null) {
@@ -100,41 +114,19 @@ public final class Board implements Serializable {
         if (o.getClass() != getClass()) {
             return false;
         }
-        
+
         Board other = (Board) o;
-        
-        if (rowCnt != other.getRowCnt() || colCnt != other.getColCnt()) {
-            return false;
-        }
-        
-        CellLabel[][] otherGrid = other.getGrid();
-        
-        for (int i = 0; i < rowCnt; i++) {
-            for (int j = 0; j < colCnt; j++) {
-                if (grid[i][j] != otherGrid[i][j]) {
-                    return false;
-                }
-            }
-        }
-        
-        return true;
+
+        return position.equals(other.getPosition());
     }
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 47 * hash + Arrays.deepHashCode(this.grid);
-        hash = 47 * hash + this.rowCnt;
-        hash = 47 * hash + this.colCnt;
-        return hash;
+        return position.hashCode();
     }
-    
+
     public Board copy() {
-        CellLabel[][] twinGrid = new CellLabel[rowCnt][colCnt];
-        for (int i = 0; i < rowCnt; i++) {
-            System.arraycopy(grid[i], 0, twinGrid[i], 0, colCnt);
-        }
-        return new Board(twinGrid);
+        return new Board(position.copy());
     }
-    
+
 }
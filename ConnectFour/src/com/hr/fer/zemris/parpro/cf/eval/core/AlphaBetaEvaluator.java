@@ -0,0 +1,587 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Evaluator running a depth-limited negamax search with alpha-beta pruning.
+ *
+ * <p>
+ * Unlike {@link BruteForceEvaluator} scores aren't averaged. A move gets a
+ * positive score if it wins by force within the search depth, negative if it
+ * loses by force and 0 if the game ends in a draw or the outcome lies beyond
+ * the horizon. Forced results encode the distance to the end of the game:
+ * a win after <code>n</code> plies (the evaluated move being the first) is
+ * scored <code>1 - n / 1000</code>, so faster wins (and slower losses) score
+ * higher. See {@link #getPlyToMate(double)}.
+ * </p>
+ *
+ * @author marko
+ */
+public class AlphaBetaEvaluator<S, M, P> implements Evaluator<S, M, P> {
+
+    static final int MATE = 1000;
+    // scores above this (in absolute value) are forced wins or losses
+    static final int MATE_BOUND = MATE - 500;
+    static final int INFINITY = MATE + 1;
+
+    private int maxDepth;
+    private final Game<S, M, P> game;
+
+    // optional, at most one of them is used
+    private final TranspositionTable table;
+    private final SharedTranspositionTable sharedTable;
+    // fields of the last entry found by probe(long)
+    private int probedScore;
+    private int probedDepth;
+    private byte probedBound;
+
+    private long nodeCnt;
+
+    private final SymmetricRootCache rootCache = new SymmetricRootCache();
+
+    private final MoveOrdering ordering;
+    private final CutoffStats cutoffStats = new CutoffStats();
+    // moves in search order, one buffer per ply
+    private int[][] orderedMoves = new int[0][];
+
+    // iterative deepening state, deadline is in System.nanoTime() units
+    private long deadline = Long.MAX_VALUE;
+    private boolean aborted;
+    private boolean horizonReached;
+    private int completedDepth;
+    // polled together with the clock, lets callers and parallel engines stop
+    // a search
+    private BooleanSupplier abortSignal;
+
+    public AlphaBetaEvaluator(Game<S, M, P> game, int maxDepth) {
+        this(game, maxDepth, null);
+    }
+
+    /**
+     * Creates an evaluator that caches search results in the provided table.
+     * <br>
+     * Scores stored by this evaluator have different meaning than the ones
+     * stored by {@link BruteForceEvaluator}, so the two must not share a table.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param table transposition table, null disables caching
+     */
+    public AlphaBetaEvaluator(Game<S, M, P> game, int maxDepth, TranspositionTable table) {
+        this(game, maxDepth, table, new KillerHistoryOrdering(game.getMoveIndexCnt()));
+    }
+
+    /**
+     * Creates an evaluator with the given move ordering.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param table transposition table, null disables caching
+     * @param ordering move ordering used during the search
+     */
+    public AlphaBetaEvaluator(Game<S, M, P> game, int maxDepth, TranspositionTable table,
+            MoveOrdering ordering) {
+        this(game, maxDepth, table, null, ordering);
+    }
+
+    /**
+     * Creates an evaluator taking part in a search with other threads, all of
+     * them caching results in the same table. The table generation is
+     * advanced by whoever coordinates the threads, not by the evaluator.
+     *
+     * @param game game being evaluated, owned by this evaluator alone
+     * @param maxDepth search depth
+     * @param sharedTable table shared with the other threads
+     * @param ordering move ordering used during the search
+     */
+    AlphaBetaEvaluator(Game<S, M, P> game, int maxDepth, SharedTranspositionTable sharedTable,
+            MoveOrdering ordering) {
+        this(game, maxDepth, null, sharedTable, ordering);
+    }
+
+    private AlphaBetaEvaluator(Game<S, M, P> game, int maxDepth, TranspositionTable table,
+            SharedTranspositionTable sharedTable, MoveOrdering ordering) {
+        this.game = game;
+        this.maxDepth = maxDepth;
+        this.table = table;
+        this.sharedTable = sharedTable;
+        this.ordering = ordering;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of positions visited since the evaluator was created.
+     *
+     * @return node count
+     */
+    public long getNodeCnt() {
+        return nodeCnt;
+    }
+
+    /**
+     * Returns statistics of the beta cutoffs made since the evaluator was
+     * created.
+     *
+     * @return cutoff statistics
+     */
+    public CutoffStats getCutoffStats() {
+        return cutoffStats;
+    }
+
+    /**
+     * Returns the depth of the deepest search completed by the last call to
+     * {@link #evaluateWithin(Object, long)}.
+     *
+     * @return completed depth
+     */
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+
+    /**
+     * Extracts the distance to the end of the game from a score.
+     *
+     * @param eval score returned by this evaluator
+     * @return number of plies until the forced win or loss, 0 if the score
+     *         isn't a forced result
+     */
+    public static int getPlyToMate(double eval) {
+        int score = (int) Math.round(eval * MATE);
+        if (Math.abs(score) <= MATE_BOUND) {
+            return 0;
+        }
+        return MATE - Math.abs(score);
+    }
+
+    /**
+     * Returns the score of a forced win, the inverse of
+     * {@link #getPlyToMate(double)}. The score of the loss is its negation.
+     *
+     * @param plyToMate number of plies until the win, the evaluated move
+     *        included
+     * @return score of the win
+     */
+    public static double getMateScore(int plyToMate) {
+        return (MATE - plyToMate) / (double) MATE;
+    }
+
+    /**
+     * Returns the score of a move leading to a position whose best move has
+     * the given score, both from the point of view of the same player: a
+     * forced result is one ply further away, other scores stay the same.
+     *
+     * @param eval score of the best move in the position reached
+     * @return score of the move reaching it
+     */
+    public static double addPly(double eval) {
+        int plyToMate = getPlyToMate(eval);
+        if (plyToMate == 0) {
+            return eval;
+        }
+        double score = getMateScore(plyToMate + 1);
+        return (eval > 0) ? score : -score;
+    }
+
+    @Override
+    public double evaluate(M move) {
+        return evaluateRoot(move) / (double) MATE;
+    }
+
+    @Override
+    public double evaluate(M move, P player) {
+        double eval = evaluateRoot(move) / (double) MATE;
+        return player.equals(game.getCurrPlayer()) ? eval : -eval;
+    }
+
+    @Override
+    public double evaluateWithin(M move, long timeBudgetMillis) {
+        checkRootMove(move);
+        startSearch(1);
+        int moveIndex = game.getMoveIndex(move);
+        long timeLimit = System.nanoTime() + timeBudgetMillis * 1000000L;
+
+        int score = 0;
+        completedDepth = 0;
+        for (int depth = 1; ; depth++) {
+            // the first iteration always runs to completion
+            deadline = (depth == 1) ? Long.MAX_VALUE : timeLimit;
+            aborted = false;
+            horizonReached = false;
+            ensurePlies(depth);
+            int iterScore = searchRootMove(moveIndex, depth);
+            if (aborted) {
+                break;
+            }
+            score = iterScore;
+            completedDepth = depth;
+            // deeper search can't find a faster forced result, and nothing
+            // changes if the whole tree fit into this depth
+            if (!horizonReached || Math.abs(score) > MATE_BOUND
+                    || System.nanoTime() >= timeLimit) {
+                break;
+            }
+        }
+        deadline = Long.MAX_VALUE;
+        aborted = false;
+        return score / (double) MATE;
+    }
+
+    /**
+     * Searches all the root moves with a shared window: once a move is found,
+     * the remaining ones only have to be proven worse. Scores of the moves
+     * other than the best one are therefore exact only if they improved on
+     * the moves before them, otherwise they are upper bounds.
+     */
+    @Override
+    public RootAnalysis<M> analyze() {
+        if (game.isOver()) {
+            throw new IllegalArgumentException("The state of the game is terminal."
+                    + " No more moves can be made!");
+        }
+        startSearch(maxDepth);
+
+        List<M> moves = game.getLegalMoves();
+        double[] scores = new double[moves.size()];
+        boolean[] exact = new boolean[moves.size()];
+        int[] scoresByIndex = new int[game.getMoveIndexCnt()];
+        boolean[] searched = new boolean[game.getMoveIndexCnt()];
+        boolean[] exactByIndex = new boolean[game.getMoveIndexCnt()];
+        boolean symmetric = game.isSymmetricPosition();
+        int alpha = -INFINITY;
+        int bestIndex = 0;
+        for (int i = 0; i < moves.size(); i++) {
+            int moveIndex = game.getMoveIndex(moves.get(i));
+            int mirrored = game.getMirroredMoveIndex(moveIndex);
+            int score;
+            if (symmetric && searched[mirrored]) {
+                // equal to the mirrored move, so it can't be an improvement
+                score = scoresByIndex[mirrored];
+                exact[i] = exactByIndex[mirrored];
+            } else if (maxDepth == 0) {
+                score = 0;
+                exact[i] = true;
+            } else {
+                nodeCnt++;
+                game.makeMove(moveIndex);
+                if (game.isOver()) {
+                    score = game.isDraw() ? 0 : MATE - 1;
+                } else {
+                    score = -negamax(maxDepth - 1, -INFINITY, -alpha, 1);
+                }
+                game.unmakeMove();
+                exact[i] = score > alpha;
+                if (score > alpha) {
+                    alpha = score;
+                    bestIndex = i;
+                }
+            }
+            searched[moveIndex] = true;
+            scoresByIndex[moveIndex] = score;
+            exactByIndex[moveIndex] = exact[i];
+            scores[i] = score / (double) MATE;
+        }
+
+        M bestMove = moves.get(bestIndex);
+        List<M> principalVariation;
+        if (table != null && maxDepth > 0) {
+            principalVariation = table.getPrincipalVariation(game,
+                    game.getMoveIndex(bestMove), maxDepth);
+        } else if (sharedTable != null && maxDepth > 0) {
+            principalVariation = sharedTable.getPrincipalVariation(game,
+                    game.getMoveIndex(bestMove), maxDepth);
+        } else {
+            principalVariation = Collections.singletonList(bestMove);
+        }
+        return new RootAnalysis<>(moves, scores, exact, bestIndex, principalVariation);
+    }
+
+    private int evaluateRoot(M move) {
+        checkRootMove(move);
+        if (maxDepth == 0) {
+            return 0;
+        }
+        int moveIndex = game.getMoveIndex(move);
+
+        // in a symmetric position the mirrored move may be evaluated already
+        boolean symmetric = game.isSymmetricPosition();
+        long rootKey = game.getPositionKey();
+        if (symmetric) {
+            double cached = rootCache.get(rootKey, maxDepth,
+                    game.getMirroredMoveIndex(moveIndex));
+            if (!Double.isNaN(cached)) {
+                return (int) cached;
+            }
+        }
+
+        startSearch(maxDepth);
+        int score = searchRootMove(moveIndex, maxDepth);
+        if (symmetric && !aborted) {
+            rootCache.put(rootKey, maxDepth, moveIndex, score);
+        }
+        return score;
+    }
+
+    private void startSearch(int depth) {
+        aborted = false;
+        if (table != null) {
+            table.newSearch();
+        }
+        ordering.newSearch();
+        ensurePlies(depth);
+    }
+
+    private void ensurePlies(int depth) {
+        int plyCnt = depth + 1;
+        if (plyCnt > orderedMoves.length) {
+            orderedMoves = new int[plyCnt][game.getMoveIndexCnt()];
+        }
+    }
+
+    private void checkRootMove(M move) {
+        if (game.isOver()) {
+            throw new IllegalArgumentException("The state of the game is terminal."
+                    + " No more moves can be made!");
+        }
+        if (!game.isLegalMove(move)) {
+            throw new IllegalArgumentException("You provided an illegal move!");
+        }
+    }
+
+    /**
+     * Checks if the last call to
+     * {@link #searchSubtree(int, int, int, int, BooleanSupplier)} left some
+     * position unexplored at the horizon.
+     *
+     * @return true if the search was cut short by its depth
+     */
+    boolean isHorizonReached() {
+        return horizonReached;
+    }
+
+    /**
+     * Searches the current (non-terminal) state with the given window. Meant
+     * for parallel engines that split the top of the tree themselves and hand
+     * out the subtrees below.
+     *
+     * @param depth remaining depth
+     * @param alpha lower bound of the window
+     * @param beta upper bound of the window
+     * @param ply number of moves made since the root state, mate distances
+     *        are counted from the root
+     * @param abortSignal polled every few thousand nodes, the search gives up
+     *        and returns 0 once it returns true
+     * @return score from the point of view of the player on turn
+     */
+    int searchSubtree(int depth, int alpha, int beta, int ply, BooleanSupplier abortSignal) {
+        BooleanSupplier prevAbortSignal = this.abortSignal;
+        this.abortSignal = abortSignal;
+        horizonReached = false;
+        startSearch(ply + depth);
+        int score = negamax(depth, alpha, beta, ply);
+        this.abortSignal = prevAbortSignal;
+        return aborted ? 0 : score;
+    }
+
+    @Override
+    public void setAbortSignal(BooleanSupplier abortSignal) {
+        this.abortSignal = abortSignal;
+    }
+
+    /**
+     * Checks if the last search gave up because of the abort signal.
+     *
+     * @return true if the search was aborted
+     */
+    boolean isAborted() {
+        return aborted;
+    }
+
+    private int searchRootMove(int moveIndex, int depth) {
+        nodeCnt++;
+        game.makeMove(moveIndex);
+        int score;
+        if (game.isOver()) {
+            score = game.isDraw() ? 0 : MATE - 1;
+        } else {
+            score = -negamax(depth - 1, -INFINITY, INFINITY, 1);
+        }
+        game.unmakeMove();
+        return score;
+    }
+
+    /**
+     * Searches the current (non-terminal) state.
+     *
+     * @param depth remaining depth
+     * @param alpha lower bound of the window
+     * @param beta upper bound of the window
+     * @param ply number of moves made since the root state
+     * @return score from the point of view of the player on turn
+     */
+    private int negamax(int depth, int alpha, int beta, int ply) {
+        if (depth == 0) {
+            horizonReached = true;
+            return 0;
+        }
+        // clock is read only every few thousand nodes
+        if ((nodeCnt & 0xFFF) == 0 && (System.nanoTime() >= deadline
+                || (abortSignal != null && abortSignal.getAsBoolean()))) {
+            aborted = true;
+        }
+        if (aborted) {
+            return 0;
+        }
+
+        long key = 0;
+        int alphaOrig = alpha;
+        if (table != null || sharedTable != null) {
+            // position and its mirror image share the entry
+            key = game.getCanonicalPositionKey();
+            if (probe(key) && probedDepth >= depth) {
+                int cached = fromTable(probedScore, ply);
+                byte bound = probedBound;
+                // entry may well come from a search that hit its horizon
+                if (Math.abs(cached) <= MATE_BOUND) {
+                    horizonReached = true;
+                }
+                if (bound == TranspositionTable.BOUND_EXACT) {
+                    return cached;
+                } else if (bound == TranspositionTable.BOUND_LOWER) {
+                    alpha = Math.max(alpha, cached);
+                } else if (bound == TranspositionTable.BOUND_UPPER) {
+                    beta = Math.min(beta, cached);
+                }
+                if (alpha >= beta) {
+                    return cached;
+                }
+            }
+        }
+
+        int best = -INFINITY;
+        int bestMove = TranspositionTable.NO_MOVE;
+        int[] moves = orderedMoves[ply];
+        int moveCnt = ordering.order(game.getLegalMoveMask(), ply, moves);
+        boolean cutoff = false;
+        for (int i = 0; i < moveCnt; i++) {
+            int moveIndex = moves[i];
+            nodeCnt++;
+            game.makeMove(moveIndex);
+            int score;
+            if (game.isOver()) {
+                score = game.isDraw() ? 0 : MATE - (ply + 1);
+            } else {
+                score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+            }
+            game.unmakeMove();
+            if (aborted) {
+                return 0;
+            }
+
+            if (score > best) {
+                best = score;
+                bestMove = moveIndex;
+                if (best > alpha) {
+                    alpha = best;
+                    if (alpha >= beta) {
+                        cutoffStats.cutoff(i);
+                        ordering.cutoff(moveIndex, ply, depth);
+                        cutoff = true;
+                        break;
+                    }
+                }
+            }
+        }
+        if (!cutoff) {
+            cutoffStats.noCutoff();
+        }
+
+        if (table != null || sharedTable != null) {
+            byte bound;
+            if (best <= alphaOrig) {
+                bound = TranspositionTable.BOUND_UPPER;
+            } else if (best >= beta) {
+                bound = TranspositionTable.BOUND_LOWER;
+            } else {
+                bound = TranspositionTable.BOUND_EXACT;
+            }
+            store(key, toTable(best, ply), depth, bound,
+                    TranspositionTable.toCanonicalMove(game, bestMove));
+        }
+        return best;
+    }
+
+    /**
+     * Looks the position up in whichever table is used and copies the entry
+     * into the <code>probed*</code> fields.
+     *
+     * @return true if the position was found
+     */
+    private boolean probe(long key) {
+        if (table != null) {
+            int slot = table.find(key);
+            if (slot < 0) {
+                return false;
+            }
+            probedScore = (int) table.getScore(slot);
+            probedDepth = table.getDepth(slot);
+            probedBound = table.getBound(slot);
+            return true;
+        }
+        long data = sharedTable.probe(key);
+        if (data == SharedTranspositionTable.NO_DATA) {
+            return false;
+        }
+        probedScore = SharedTranspositionTable.getScore(data);
+        probedDepth = SharedTranspositionTable.getDepth(data);
+        probedBound = SharedTranspositionTable.getBound(data);
+        return true;
+    }
+
+    private void store(long key, int score, int depth, byte bound, int bestMove) {
+        if (table != null) {
+            table.store(key, score, depth, bound, bestMove);
+        } else {
+            sharedTable.store(key, score, depth, bound, bestMove);
+        }
+    }
+
+    /**
+     * Forced results are stored relative to the cached position rather than
+     * to the root, so they stay correct when reached at a different ply.
+     */
+    static int toTable(int score, int ply) {
+        if (score > MATE_BOUND) {
+            return score + ply;
+        }
+        if (score < -MATE_BOUND) {
+            return score - ply;
+        }
+        return score;
+    }
+
+    static int fromTable(int score, int ply) {
+        if (score > MATE_BOUND) {
+            return score - ply;
+        }
+        if (score < -MATE_BOUND) {
+            return score + ply;
+        }
+        return score;
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+}
@@ -1,7 +1,10 @@
 package com.hr.fer.zemris.parpro.cf.eval.core;
 
 import com.hr.fer.zemris.parpro.cf.Game;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 /**
  *
@@ -12,9 +15,64 @@ public class BruteForceEvaluator<S, M, P> implements Evaluator<S, M, P> {
     private final Game<S, M, P> game;
     private P clientPlayer;
     
+    // optional, null when positions aren't cached
+    private final TranspositionTable table;
+    
+    private long nodeCnt;
+    
+    private final SymmetricRootCache rootCache = new SymmetricRootCache();
+    
+    private final MoveOrdering ordering;
+    private final CutoffStats cutoffStats = new CutoffStats();
+    // per ply: moves in search order, and child evaluations by move index
+    private int[][] orderedMoves = new int[0][];
+    private double[][] childEvals = new double[0][];
+    // best move of the last expanded state, as it goes into the table
+    private int expandedBestMove;
+    
+    // iterative deepening state, deadline is in System.nanoTime() units
+    private long deadline = Long.MAX_VALUE;
+    private boolean aborted;
+    private boolean horizonReached;
+    private int completedDepth;
+    // polled together with the clock
+    private BooleanSupplier abortSignal;
+    
     public BruteForceEvaluator(Game<S, M, P> game, int maxDepth) {
+        this(game, maxDepth, null);
+    }
+    
+    /**
+     * Creates an evaluator that caches evaluated positions in the provided
+     * table. <br>
+     * Cached scores don't depend on the client player, so the same table can
+     * be shared by successive evaluators working on the same game.
+     * 
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param table transposition table, null disables caching
+     */
+    public BruteForceEvaluator(Game<S, M, P> game, int maxDepth,
+            TranspositionTable table) {
+        this(game, maxDepth, table, new KillerHistoryOrdering(game.getMoveIndexCnt()));
+    }
+    
+    /**
+     * Creates an evaluator with the given move ordering. <br>
+     * Ordering only affects how soon the forced results are found, scores are
+     * the same for any ordering.
+     * 
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param table transposition table, null disables caching
+     * @param ordering move ordering used during the search
+     */
+    public BruteForceEvaluator(Game<S, M, P> game, int maxDepth,
+            TranspositionTable table, MoveOrdering ordering) {
         this.game = game;
         this.maxDepth = maxDepth;
+        this.table = table;
+        this.ordering = ordering;
     }
     
     public void setMaxDepth(int maxDepth) {
@@ -25,38 +83,302 @@ public class BruteForceEvaluator<S, M, P> implements Evaluator<S, M, P> {
         return maxDepth;
     }
     
+    /**
+     * Returns the number of positions visited since the evaluator was created.
+     * 
+     * @return node count
+     */
+    public long getNodeCnt() {
+        return nodeCnt;
+    }
+    
+    /**
+     * Returns statistics of the early exits (on forced results) made since the
+     * evaluator was created.
+     * 
+     * @return cutoff statistics
+     */
+    public CutoffStats getCutoffStats() {
+        return cutoffStats;
+    }
+    
+    /**
+     * Returns the depth of the deepest search completed by the last call to
+     * {@link #evaluateWithin(Object, long)}.
+     * 
+     * @return completed depth
+     */
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+    
+    /**
+     * Checks if the last search was cut short by its depth. If it wasn't,
+     * searching deeper would give the same result.
+     * 
+     * @return true if some position was left unexplored at the horizon
+     */
+    public boolean isHorizonReached() {
+        return horizonReached;
+    }
+    
+    @Override
+    public void setAbortSignal(BooleanSupplier abortSignal) {
+        this.abortSignal = abortSignal;
+    }
+    
     @Override
     public double evaluate(M move, P player) {
         clientPlayer = player;
-        return evaluateRecursively(move, maxDepth);
+        return evaluateRoot(move);
     }
     
     
     @Override
     public double evaluate(M move) {
         clientPlayer = game.getCurrPlayer();
-        return evaluateRecursively(move, maxDepth);
+        return evaluateRoot(move);
+    }
+    
+    @Override
+    public double evaluateWithin(M move, long timeBudgetMillis) {
+        clientPlayer = game.getCurrPlayer();
+        checkRootMove(move);
+        startSearch(1);
+        int moveIndex = game.getMoveIndex(move);
+        long timeLimit = System.nanoTime() + timeBudgetMillis * 1000000L;
+        
+        double eval = 0;
+        completedDepth = 0;
+        for (int depth = 1; ; depth++) {
+            // the first iteration always runs to completion
+            deadline = (depth == 1) ? Long.MAX_VALUE : timeLimit;
+            aborted = false;
+            horizonReached = false;
+            ensurePlies(depth);
+            double iterEval = evaluateRecursively(moveIndex, depth, 0);
+            if (aborted) {
+                break;
+            }
+            eval = iterEval;
+            completedDepth = depth;
+            // nothing left to discover if the whole tree fit into this depth
+            // or the result is already forced
+            if (!horizonReached || eval == 1 || eval == -1
+                    || System.nanoTime() >= timeLimit) {
+                break;
+            }
+        }
+        deadline = Long.MAX_VALUE;
+        aborted = false;
+        return eval;
+    }
+    
+    @Override
+    public RootAnalysis<M> analyze() {
+        if (game.isOver()) {
+            throw new IllegalArgumentException("The state of the game is terminal."
+                    + " No more moves can be made!");
+        }
+        clientPlayer = game.getCurrPlayer();
+        // one search for all the moves, so cached positions and move ordering
+        // carry over from one root move to the next
+        startSearch(maxDepth);
+        
+        List<M> moves = game.getLegalMoves();
+        double[] scores = new double[moves.size()];
+        boolean[] exact = new boolean[moves.size()];
+        double[] evalsByIndex = new double[game.getMoveIndexCnt()];
+        Arrays.fill(evalsByIndex, Double.NaN);
+        boolean symmetric = game.isSymmetricPosition();
+        int bestIndex = 0;
+        for (int i = 0; i < moves.size(); i++) {
+            int moveIndex = game.getMoveIndex(moves.get(i));
+            double eval = symmetric
+                    ? evalsByIndex[game.getMirroredMoveIndex(moveIndex)] : Double.NaN;
+            if (Double.isNaN(eval)) {
+                eval = evaluateRecursively(moveIndex, maxDepth, 0);
+            }
+            evalsByIndex[moveIndex] = eval;
+            scores[i] = eval;
+            exact[i] = true;
+            if (eval > scores[bestIndex]) {
+                bestIndex = i;
+            }
+        }
+        
+        M bestMove = moves.get(bestIndex);
+        List<M> principalVariation = (table != null)
+                ? table.getPrincipalVariation(game, game.getMoveIndex(bestMove), maxDepth)
+                : Collections.singletonList(bestMove);
+        return new RootAnalysis<>(moves, scores, exact, bestIndex, principalVariation);
+    }
+    
+    private double evaluateRoot(M move) {
+        checkRootMove(move);
+        int moveIndex = game.getMoveIndex(move);
+        boolean clientMoves = game.getCurrPlayer() == clientPlayer;
+        
+        // in a symmetric position the mirrored move may be evaluated already
+        boolean symmetric = game.isSymmetricPosition();
+        long rootKey = game.getPositionKey();
+        if (symmetric) {
+            double cached = rootCache.get(rootKey, maxDepth,
+                    game.getMirroredMoveIndex(moveIndex));
+            if (!Double.isNaN(cached)) {
+                return clientMoves ? cached : -cached;
+            }
+        }
+        
+        startSearch(maxDepth);
+        double eval = evaluateRecursively(moveIndex, maxDepth, 0);
+        if (symmetric && !aborted) {
+            rootCache.put(rootKey, maxDepth, moveIndex, clientMoves ? eval : -eval);
+        }
+        return eval;
+    }
+    
+    private void startSearch(int depth) {
+        horizonReached = false;
+        aborted = false;
+        if (table != null) {
+            table.newSearch();
+        }
+        ordering.newSearch();
+        ensurePlies(depth);
+    }
+    
+    private void ensurePlies(int depth) {
+        int plyCnt = depth + 1;
+        if (plyCnt <= orderedMoves.length) {
+            return;
+        }
+        int moveIndexCnt = game.getMoveIndexCnt();
+        orderedMoves = new int[plyCnt][moveIndexCnt];
+        childEvals = new double[plyCnt][moveIndexCnt];
     }
     
-    private double evaluateRecursively(M move, int depth) {
+    private void checkRootMove(M move) {
+        // the root move comes from outside, so it is the only one that gets
+        // validated -- everything below it is generated by the search itself
+        if (game.isOver()) {
+            throw new IllegalArgumentException("The state of the game is terminal."
+                    + " No more moves can be made!");
+        }
+        if (!game.isLegalMove(move)) {
+            throw new IllegalArgumentException("You provided an illegal move!");
+        }
+    }
+    
+    /**
+     * Evaluates the move.
+     * 
+     * @param moveIndex index of the move
+     * @param depth remaining depth, the move itself included
+     * @param ply number of moves made since the root state
+     * @return evaluation from the point of view of the client
+     */
+    private double evaluateRecursively(int moveIndex, int depth, int ply) {
         if (depth == 0) {
+            horizonReached = true;
             return 0;
         }
-        game.performMove(move);
+        // clock is read only every few thousand nodes
+        if ((nodeCnt & 0xFFF) == 0 && (System.nanoTime() >= deadline
+                || (abortSignal != null && abortSignal.getAsBoolean()))) {
+            aborted = true;
+        }
+        if (aborted) {
+            return 0;
+        }
+        // table keeps scores from the point of view of the player making the
+        // move, so entries stay valid whoever the client is
+        boolean clientMoves = game.getCurrPlayer() == clientPlayer;
+        nodeCnt++;
+        game.makeMove(moveIndex);
         if (game.isOver()) {
-            game.undoMove();
+            boolean draw = game.isDraw();
+            game.unmakeMove();
+            if (draw) {
+                return 0;
+            }
             if (game.getCurrPlayer() == clientPlayer) {
                 return 1;
             } else {
                 return -1;
             }
         }
-        double totalEval = 0;
+        long key = 0;
+        if (table != null) {
+            // position and its mirror image share the entry
+            key = game.getCanonicalPositionKey();
+            int slot = table.find(key);
+            if (slot >= 0 && isUsable(table.getScore(slot), table.getDepth(slot), depth)) {
+                double cached = table.getScore(slot);
+                // entry may well come from a search that hit its horizon
+                if (cached != 1 && cached != -1) {
+                    horizonReached = true;
+                }
+                game.unmakeMove();
+                return clientMoves ? cached : -cached;
+            }
+        }
+        double eval = expand(depth, ply + 1);
+        game.unmakeMove();
+        if (table != null && !aborted) {
+            table.store(key, clientMoves ? eval : -eval, depth,
+                    TranspositionTable.BOUND_EXACT, expandedBestMove);
+        }
+        return eval;
+    }
+    
+    /**
+     * Checks if the cached score can stand in for a search of given depth.
+     * <br>
+     * Averaged scores change with depth, so they have to match exactly. Forced
+     * results (+-1) hold for any deeper search as well.
+     */
+    private static boolean isUsable(double score, int storedDepth, int depth) {
+        if (storedDepth == depth) {
+            return true;
+        }
+        return (score == 1 || score == -1) && storedDepth < depth;
+    }
+    
+    /**
+     * Evaluates all the moves from the current (non-terminal) state and
+     * combines the results. State is left unchanged.
+     */
+    private double expand(int depth, int ply) {
+        if (depth == 1) {
+            // every child lies on the horizon and scores 0, so does the average
+            horizonReached = true;
+            expandedBestMove = TranspositionTable.NO_MOVE;
+            return 0;
+        }
         boolean allLose = true;
         boolean allWin = true;
-        List<M> legalMoves = game.getLegalMoves();
-        for (M newMove : legalMoves) {
-            double eval = evaluateRecursively(newMove, depth - 1);
+        long legalMoves = game.getLegalMoveMask();
+        int[] moves = orderedMoves[ply];
+        double[] evals = childEvals[ply];
+        int moveCnt = ordering.order(legalMoves, ply, moves);
+        // the player on turn prefers the highest score from own point of view
+        boolean clientMoves = game.getCurrPlayer() == clientPlayer;
+        int bestMove = TranspositionTable.NO_MOVE;
+        double bestEval = 0;
+        for (int i = 0; i < moveCnt; i++) {
+            int moveIndex = moves[i];
+            double eval = evaluateRecursively(moveIndex, depth - 1, ply);
+            if (aborted) {
+                return 0;
+            }
+            double ownEval = clientMoves ? eval : -eval;
+            if (bestMove == TranspositionTable.NO_MOVE || ownEval > bestEval) {
+                bestMove = moveIndex;
+                bestEval = ownEval;
+            }
+            // set before every return, children have overwritten it by now
+            expandedBestMove = TranspositionTable.toCanonicalMove(game, bestMove);
             if (eval > -1) {
                 allLose = false;
             }
@@ -64,23 +386,55 @@ public class BruteForceEvaluator<S, M, P> implements Evaluator<S, M, P> {
                 allWin = false;
             }
             if (eval == 1 && game.getCurrPlayer() == clientPlayer) {
-                game.undoMove();
+                cutoffStats.cutoff(i);
+                ordering.cutoff(moveIndex, ply, depth);
                 return 1;
             }
             if (eval == -1 &&  game.getCurrPlayer() != clientPlayer) {
-                game.undoMove();
+                cutoffStats.cutoff(i);
+                ordering.cutoff(moveIndex, ply, depth);
                 return -1;
             }
-            totalEval += eval;
+            evals[moveIndex] = eval;
         }
-        game.undoMove();
+        cutoffStats.noCutoff();
         if (allWin) {    
             return 1;
         }
         if (allLose) {
             return -1;
         }
-        return totalEval/(double)legalMoves.size();
+        return average(game, legalMoves, evals);
+    }
+    
+    /**
+     * Averages the evaluations of the legal moves. <br>
+     * Evaluations are added up in a fixed order, independent of the order
+     * the moves were searched in, and each move is first paired with its
+     * mirror image. A position and its mirror image therefore get exactly the
+     * same average, which lets them share transposition table entries without
+     * changing any result.
+     * 
+     * @param game game the moves belong to
+     * @param legalMoves bitmask of legal move indices
+     * @param evals evaluations indexed by move index
+     * @return average of the evaluations
+     */
+    public static double average(Game<?, ?, ?> game, long legalMoves, double[] evals) {
+        double totalEval = 0;
+        int moveIndexCnt = game.getMoveIndexCnt();
+        for (int i = 0; i < moveIndexCnt; i++) {
+            int mirrored = game.getMirroredMoveIndex(i);
+            if (mirrored < i) {
+                continue;
+            }
+            double eval = ((legalMoves & (1L << i)) != 0) ? evals[i] : 0;
+            if (mirrored != i && (legalMoves & (1L << mirrored)) != 0) {
+                eval += evals[mirrored];
+            }
+            totalEval += eval;
+        }
+        return totalEval/(double)Long.bitCount(legalMoves);
     }
 
     @Override
@@ -0,0 +1,63 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+/**
+ * Static ordering that visits the moves closest to the middle index first.
+ * <br>
+ * In Connect Four move index is the column and central columns take part in
+ * the most lines of four, so they are the likeliest to be good.
+ *
+ * @author marko
+ */
+public class CenterFirstOrdering implements MoveOrdering {
+
+    // move indices, the most central first
+    private final int[] priority;
+
+    public CenterFirstOrdering(int moveIndexCnt) {
+        priority = new int[moveIndexCnt];
+        int center = (moveIndexCnt - 1) / 2;
+        // center, then alternately one to the right and one to the left
+        for (int i = 0, offset = 0; i < moveIndexCnt; offset++) {
+            if (center + offset < moveIndexCnt) {
+                priority[i++] = center + offset;
+            }
+            if (offset > 0 && center - offset >= 0 && i < moveIndexCnt) {
+                priority[i++] = center - offset;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the move in the static order, lower is better.
+     *
+     * @param moveIndex index of the move
+     * @return rank of the move
+     */
+    int rank(int moveIndex) {
+        for (int i = 0; i < priority.length; i++) {
+            if (priority[i] == moveIndex) {
+                return i;
+            }
+        }
+        return priority.length;
+    }
+
+    @Override
+    public int order(long legalMoves, int ply, int[] buffer) {
+        int cnt = 0;
+        for (int moveIndex : priority) {
+            if ((legalMoves & (1L << moveIndex)) != 0) {
+                buffer[cnt++] = moveIndex;
+            }
+        }
+        return cnt;
+    }
+
+    @Override
+    public void cutoff(int moveIndex, int ply, int depth) {
+    }
+
+    @Override
+    public void newSearch() {
+    }
+}
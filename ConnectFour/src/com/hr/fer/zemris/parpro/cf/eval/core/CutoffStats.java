@@ -0,0 +1,76 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+/**
+ * Counters describing how well the move ordering works. <br>
+ * For every expanded state the search reports either the position (among
+ * its siblings) of the move that caused a cutoff or that all the moves had
+ * to be searched.
+ *
+ * @author marko
+ */
+public class CutoffStats {
+
+    private long expandedCnt;
+    private long cutoffCnt;
+    private long firstMoveCutoffCnt;
+    private long siblingsBeforeCutoffCnt;
+
+    /**
+     * Records the cutoff caused by the move searched as <code>i</code>-th.
+     *
+     * @param siblingIndex zero based position of the move in the ordering
+     */
+    public void cutoff(int siblingIndex) {
+        expandedCnt++;
+        cutoffCnt++;
+        if (siblingIndex == 0) {
+            firstMoveCutoffCnt++;
+        }
+        siblingsBeforeCutoffCnt += siblingIndex;
+    }
+
+    /**
+     * Records a state whose moves were all searched.
+     */
+    public void noCutoff() {
+        expandedCnt++;
+    }
+
+    public long getExpandedCnt() {
+        return expandedCnt;
+    }
+
+    public long getCutoffCnt() {
+        return cutoffCnt;
+    }
+
+    public long getFirstMoveCutoffCnt() {
+        return firstMoveCutoffCnt;
+    }
+
+    /**
+     * Returns the average number of siblings searched before the one causing
+     * the cutoff.
+     *
+     * @return average number of wasted siblings per cutoff
+     */
+    public double getAvgSiblingsBeforeCutoff() {
+        return (cutoffCnt == 0) ? 0 : siblingsBeforeCutoffCnt / (double) cutoffCnt;
+    }
+
+    public void reset() {
+        expandedCnt = 0;
+        cutoffCnt = 0;
+        firstMoveCutoffCnt = 0;
+        siblingsBeforeCutoffCnt = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("expanded: %d, cutoffs: %d (%.1f%% on first move),"
+                + " avg. siblings before cutoff: %.2f",
+                expandedCnt, cutoffCnt,
+                (cutoffCnt == 0) ? 0 : 100.0 * firstMoveCutoffCnt / cutoffCnt,
+                getAvgSiblingsBeforeCutoff());
+    }
+}
@@ -2,6 +2,7 @@ package com.hr.fer.zemris.parpro.cf.eval.core;
 
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.DuringEvaluationException;
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCloseException;
+import java.util.function.BooleanSupplier;
 
 /**
  *
@@ -10,6 +11,43 @@ import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCloseException;
 public interface Evaluator<S, M, P> extends AutoCloseable {
     double evaluate(M move) throws DuringEvaluationException;
     double evaluate(M move, P player);  
+    
+    /**
+     * Evaluates the move by iterative deepening: depth 1, 2, 3 and so on is
+     * searched until the time budget runs out, and the result of the deepest
+     * completed search is returned. Depth 1 is always completed, so the call
+     * may take longer than the budget if even that is too much.
+     * 
+     * @param move move to be evaluated
+     * @param timeBudgetMillis time available for the evaluation
+     * @return evaluation of the deepest completed search
+     * @throws DuringEvaluationException if the evaluation fails
+     */
+    double evaluateWithin(M move, long timeBudgetMillis) throws DuringEvaluationException;
+    
+    /**
+     * Evaluates all the legal moves from the current state in one go. <br>
+     * Unlike calling {@link #evaluate(Object)} for every move, the evaluator
+     * can carry cached positions, move ordering and search bounds over from
+     * one move to the next.
+     * 
+     * @return scores of all the moves, the best move and the principal
+     *         variation
+     * @throws DuringEvaluationException if the evaluation fails
+     */
+    RootAnalysis<M> analyze() throws DuringEvaluationException;
+
+    /**
+     * Sets a signal polled every few thousand positions by the thread running
+     * the following searches, which give up once it returns true. Results of
+     * such searches are meaningless. Evaluators unable to stop a running
+     * search ignore the signal.
+     *
+     * @param abortSignal abort signal, null for none
+     */
+    default void setAbortSignal(BooleanSupplier abortSignal) {
+    }
+
     @Override
     void close() throws EvaluatorCloseException;
 }
@@ -0,0 +1,108 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Local search engines that can be picked by name, for instance from the
+ * command line of an evaluation server.
+ *
+ * @author marko
+ */
+public enum EvaluatorKind {
+    BRUTE_FORCE("bruteforce"),
+    ALPHA_BETA("alphabeta"),
+    PARALLEL_BRUTE_FORCE("parallelbruteforce"),
+    PARALLEL_ALPHA_BETA("parallelalphabeta"),
+    LAZY_SMP("lazysmp");
+
+    private final String name;
+
+    private EvaluatorKind(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Tells how the engines of this kind value a position. Brute-force ones
+     * average the scores of its moves and give 1 or -1 only to forced
+     * results. The others take the best move and score forced results by
+     * their distance, see {@link AlphaBetaEvaluator}.
+     *
+     * @return true if scores of the moves are averaged
+     */
+    public boolean isAveraging() {
+        return this == BRUTE_FORCE || this == PARALLEL_BRUTE_FORCE;
+    }
+
+    /**
+     * Creates the evaluator of this kind. <br>
+     * Parallel engines don't use the table, it can't be shared between
+     * threads. Lazy SMP brings its own table that can and runs its helpers on
+     * the common pool; callers creating many evaluators should use
+     * {@link #create(Game, int, TranspositionTable, SharedTranspositionTable, int, ForkJoinPool)}.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param table transposition table, null disables caching
+     * @return new evaluator
+     */
+    public <S, M, P> Evaluator<S, M, P> create(Game<S, M, P> game, int maxDepth,
+            TranspositionTable table) {
+        switch (this) {
+            case ALPHA_BETA:
+                return new AlphaBetaEvaluator<>(game, maxDepth, table);
+            case PARALLEL_BRUTE_FORCE:
+                return new ParallelBruteForceEvaluator<>(game, maxDepth);
+            case PARALLEL_ALPHA_BETA:
+                return new ParallelAlphaBetaEvaluator<>(game, maxDepth);
+            case LAZY_SMP:
+                return new LazySmpEvaluator<>(game, maxDepth);
+            default:
+                return new BruteForceEvaluator<>(game, maxDepth, table);
+        }
+    }
+
+    /**
+     * Creates the evaluator of this kind, Lazy SMP searching with the given
+     * threads and table instead of its own. Both are meant to outlive the
+     * evaluator, so a server creating one per request doesn't pay for them
+     * every time. The other kinds ignore them.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param table transposition table, null disables caching
+     * @param sharedTable table of the Lazy SMP threads
+     * @param threadCnt number of Lazy SMP threads, the calling one included
+     * @param helperPool pool running the Lazy SMP helpers, may be null if
+     *        there is a single thread
+     * @return new evaluator
+     */
+    public <S, M, P> Evaluator<S, M, P> create(Game<S, M, P> game, int maxDepth,
+            TranspositionTable table, SharedTranspositionTable sharedTable, int threadCnt,
+            ForkJoinPool helperPool) {
+        if (this == LAZY_SMP) {
+            return new LazySmpEvaluator<>(game, maxDepth, threadCnt, sharedTable, helperPool);
+        }
+        return create(game, maxDepth, table);
+    }
+
+    /**
+     * Looks the kind up by its name.
+     *
+     * @param name name of the kind, as returned by {@link #getName()}
+     * @return kind with the given name
+     * @throws IllegalArgumentException if there is no such kind
+     */
+    public static EvaluatorKind fromName(String name) {
+        for (EvaluatorKind kind : values()) {
+            if (kind.name.equalsIgnoreCase(name)) {
+                return kind;
+            }
+        }
+        throw new IllegalArgumentException("Unknown evaluator: " + name);
+    }
+}
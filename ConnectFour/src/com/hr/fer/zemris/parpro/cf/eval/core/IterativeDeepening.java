@@ -0,0 +1,61 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * Iterative deepening within a time budget, for searches that run to their
+ * end once started. <br>
+ * The next depth is started only if its duration, extrapolated from the
+ * growth between the previous two searches, still fits into the remaining
+ * time. Searches able to stop at a deadline may give up by returning null,
+ * the result of the previous depth is kept then.
+ *
+ * @author marko
+ */
+public final class IterativeDeepening {
+
+    private IterativeDeepening() {
+    }
+
+    /**
+     * Searches with growing depth until the time runs out or the result
+     * can't change anymore. The first search always runs.
+     *
+     * @param firstDepth depth of the first search
+     * @param lastDepth deepest search worth running
+     * @param timeBudgetMillis time budget of all the searches together
+     * @param search runs the search to the given depth, returns null if it
+     *        gave up
+     * @param isFinal tells whether deeper searches give the same result
+     * @return result of the deepest completed search, null if even the first
+     *         one gave up
+     */
+    public static <T> T deepen(int firstDepth, int lastDepth, long timeBudgetMillis,
+            IntFunction<T> search, Predicate<T> isFinal) {
+        long startTime = System.currentTimeMillis();
+        T result = null;
+        long prevSearchTime = 0;
+        for (int depth = firstDepth; depth <= lastDepth; depth++) {
+            long searchStart = System.currentTimeMillis();
+            T depthResult = search.apply(depth);
+            long searchTime = System.currentTimeMillis() - searchStart;
+            if (depthResult == null) {
+                break;
+            }
+            result = depthResult;
+
+            if (isFinal.test(result)) {
+                break;
+            }
+            long growth = (prevSearchTime > 0)
+                    ? Math.max(2, searchTime / prevSearchTime) : 2;
+            long remaining = timeBudgetMillis - (System.currentTimeMillis() - startTime);
+            if (searchTime * growth > remaining) {
+                break;
+            }
+            prevSearchTime = Math.max(1, searchTime);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,101 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import java.util.Arrays;
+
+/**
+ * Dynamic ordering built from the cutoffs seen during the search. <br>
+ * Two killer moves are kept for every ply, the latest moves that caused a
+ * cutoff at that ply. They are tried first, followed by the remaining moves
+ * sorted by their history score, which grows with the square of the depth
+ * at every cutoff. Ties are broken center-first.
+ *
+ * @author marko
+ */
+public class KillerHistoryOrdering implements MoveOrdering {
+
+    private static final int NO_MOVE = -1;
+
+    private final CenterFirstOrdering staticOrdering;
+    private final int[] staticRank;
+
+    private final long[] history;
+    private int[][] killers;
+
+    // scratch space for sorting the non-killer moves
+    private final int[] candidates;
+
+    public KillerHistoryOrdering(int moveIndexCnt) {
+        staticOrdering = new CenterFirstOrdering(moveIndexCnt);
+        staticRank = new int[moveIndexCnt];
+        for (int i = 0; i < moveIndexCnt; i++) {
+            staticRank[i] = staticOrdering.rank(i);
+        }
+        history = new long[moveIndexCnt];
+        candidates = new int[moveIndexCnt];
+        killers = new int[0][];
+        ensurePlies(64);
+    }
+
+    public int getMoveIndexCnt() {
+        return history.length;
+    }
+
+    @Override
+    public int order(long legalMoves, int ply, int[] buffer) {
+        ensurePlies(ply + 1);
+        int cnt = 0;
+        for (int killer : killers[ply]) {
+            if (killer != NO_MOVE && (legalMoves & (1L << killer)) != 0) {
+                buffer[cnt++] = killer;
+                legalMoves &= ~(1L << killer);
+            }
+        }
+
+        int candidateCnt = staticOrdering.order(legalMoves, ply, candidates);
+        // insertion sort by history, stable so the static order breaks ties
+        for (int i = 1; i < candidateCnt; i++) {
+            int moveIndex = candidates[i];
+            int j = i - 1;
+            while (j >= 0 && history[candidates[j]] < history[moveIndex]) {
+                candidates[j + 1] = candidates[j];
+                j--;
+            }
+            candidates[j + 1] = moveIndex;
+        }
+        System.arraycopy(candidates, 0, buffer, cnt, candidateCnt);
+        return cnt + candidateCnt;
+    }
+
+    @Override
+    public void cutoff(int moveIndex, int ply, int depth) {
+        ensurePlies(ply + 1);
+        int[] plyKillers = killers[ply];
+        if (plyKillers[0] != moveIndex) {
+            plyKillers[1] = plyKillers[0];
+            plyKillers[0] = moveIndex;
+        }
+        history[moveIndex] += (long) depth * depth;
+    }
+
+    @Override
+    public void newSearch() {
+        // killers are position specific, history is only aged
+        for (int[] plyKillers : killers) {
+            Arrays.fill(plyKillers, NO_MOVE);
+        }
+        for (int i = 0; i < history.length; i++) {
+            history[i] >>= 1;
+        }
+    }
+
+    private void ensurePlies(int plyCnt) {
+        if (plyCnt <= killers.length) {
+            return;
+        }
+        int oldCnt = killers.length;
+        killers = Arrays.copyOf(killers, Math.max(plyCnt, 2 * oldCnt));
+        for (int i = oldCnt; i < killers.length; i++) {
+            killers[i] = new int[] {NO_MOVE, NO_MOVE};
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Multi-threaded alpha-beta search in the Lazy SMP style.
+ *
+ * <p>
+ * All the threads search the same root to the same depth, each with its own
+ * copy of the game and its own {@link AlphaBetaEvaluator}, and they
+ * communicate only through a {@link SharedTranspositionTable}. Helper threads
+ * use slightly perturbed move orders (see {@link PerturbedOrdering}), so they
+ * explore different parts of the tree first and fill the table with
+ * positions the main thread reaches later. The result is the one of the main
+ * thread, once it finishes the helpers are stopped.
+ * </p>
+ *
+ * <p>
+ * Nothing is locked during the search. Scores are those of
+ * {@link AlphaBetaEvaluator} with a table: the best move and forced results
+ * are the same as without one, other scores may depend on the timing of the
+ * threads.
+ * </p>
+ *
+ * @author marko
+ */
+public class LazySmpEvaluator<S, M, P> implements Evaluator<S, M, P> {
+
+    /** memory of the table if not told otherwise */
+    public static final long DEFAULT_TABLE_BYTES = 16L << 20;
+
+    private final Game<S, M, P> game;
+    private final int threadCnt;
+    private final SharedTranspositionTable table;
+
+    // runs the helper threads, null if there are none
+    private final ForkJoinPool pool;
+    // pools created by the evaluator are shut down on close
+    private final boolean ownsPool;
+
+    private final AlphaBetaEvaluator<S, M, P> mainEvaluator;
+    // one per helper thread, they keep learning across searches
+    private final MoveOrdering[] helperOrderings;
+    private long helperNodeCnt;
+
+    // tells the helpers to give up
+    private volatile boolean stopped;
+
+    /**
+     * Creates an evaluator whose helper threads run on the common pool, using
+     * all of its threads, with a table of the default size.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     */
+    public LazySmpEvaluator(Game<S, M, P> game, int maxDepth) {
+        this(game, maxDepth, ForkJoinPool.getCommonPoolParallelism() + 1,
+                new SharedTranspositionTable(DEFAULT_TABLE_BYTES,
+                        TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED),
+                ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * Creates an evaluator with its own threads.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param threadCnt number of searching threads, the calling one included
+     * @param table table shared by the threads
+     */
+    public LazySmpEvaluator(Game<S, M, P> game, int maxDepth, int threadCnt,
+            SharedTranspositionTable table) {
+        this(game, maxDepth, threadCnt, table,
+                (threadCnt > 1) ? new ForkJoinPool(threadCnt - 1) : null, true);
+    }
+
+    /**
+     * Creates an evaluator whose helper threads run on a pool owned by the
+     * caller. Short-lived evaluators can share the table and the pool, so
+     * creating one per search costs neither memory nor threads.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param threadCnt number of searching threads, the calling one included
+     * @param table table shared by the threads
+     * @param pool pool running the helpers, it isn't shut down on close; may
+     *        be null if there is a single thread
+     */
+    public LazySmpEvaluator(Game<S, M, P> game, int maxDepth, int threadCnt,
+            SharedTranspositionTable table, ForkJoinPool pool) {
+        this(game, maxDepth, threadCnt, table, pool, false);
+    }
+
+    private LazySmpEvaluator(Game<S, M, P> game, int maxDepth, int threadCnt,
+            SharedTranspositionTable table, ForkJoinPool pool, boolean ownsPool) {
+        if (threadCnt < 1) {
+            throw new IllegalArgumentException("At least one thread is needed.");
+        }
+        if (threadCnt > 1 && pool == null) {
+            throw new IllegalArgumentException("Helper threads need a pool.");
+        }
+        this.game = game;
+        this.threadCnt = threadCnt;
+        this.table = table;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+
+        int moveIndexCnt = game.getMoveIndexCnt();
+        mainEvaluator = new AlphaBetaEvaluator<>(game, maxDepth, table,
+                new KillerHistoryOrdering(moveIndexCnt));
+        helperOrderings = new MoveOrdering[threadCnt - 1];
+        for (int i = 0; i < helperOrderings.length; i++) {
+            helperOrderings[i] = new PerturbedOrdering(
+                    new KillerHistoryOrdering(moveIndexCnt), i + 1);
+        }
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        mainEvaluator.setMaxDepth(maxDepth);
+    }
+
+    public int getMaxDepth() {
+        return mainEvaluator.getMaxDepth();
+    }
+
+    public int getThreadCnt() {
+        return threadCnt;
+    }
+
+    public SharedTranspositionTable getTable() {
+        return table;
+    }
+
+    /**
+     * Returns the number of positions visited since the evaluator was created,
+     * summed over all threads.
+     *
+     * @return node count
+     */
+    public long getNodeCnt() {
+        return mainEvaluator.getNodeCnt() + helperNodeCnt;
+    }
+
+    /**
+     * Returns the depth of the deepest search completed by the main thread in
+     * the last call to {@link #evaluateWithin(Object, long)}.
+     *
+     * @return completed depth
+     */
+    public int getCompletedDepth() {
+        return mainEvaluator.getCompletedDepth();
+    }
+
+    @Override
+    public double evaluate(M move) {
+        return search(evaluator -> evaluator.evaluate(move));
+    }
+
+    @Override
+    public double evaluate(M move, P player) {
+        return search(evaluator -> evaluator.evaluate(move, player));
+    }
+
+    @Override
+    public double evaluateWithin(M move, long timeBudgetMillis) {
+        return search(evaluator -> evaluator.evaluateWithin(move, timeBudgetMillis));
+    }
+
+    @Override
+    public RootAnalysis<M> analyze() {
+        return search(AlphaBetaEvaluator::analyze);
+    }
+
+    /**
+     * Runs the search in the main thread and all the helpers, returns the
+     * result of the main thread.
+     */
+    private <T> T search(Function<AlphaBetaEvaluator<S, M, P>, T> searchCall) {
+        table.newSearch();
+        stopped = false;
+
+        List<AlphaBetaEvaluator<S, M, P>> helpers = new ArrayList<>(helperOrderings.length);
+        List<Future<T>> futures = new ArrayList<>(helperOrderings.length);
+        for (MoveOrdering ordering : helperOrderings) {
+            AlphaBetaEvaluator<S, M, P> helper = new AlphaBetaEvaluator<>(game.copy(),
+                    mainEvaluator.getMaxDepth(), table, ordering);
+            helper.setAbortSignal(() -> stopped);
+            helpers.add(helper);
+            // on a busy pool a helper may start after the main thread is done
+            futures.add(pool.submit(() -> stopped ? null : searchCall.apply(helper)));
+        }
+
+        T result;
+        try {
+            result = searchCall.apply(mainEvaluator);
+        } finally {
+            stopped = true;
+            // helpers are waited for, so none of them is still writing into
+            // the table when the next search starts
+            for (Future<T> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(LazySmpEvaluator.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            for (AlphaBetaEvaluator<S, M, P> helper : helpers) {
+                helperNodeCnt += helper.getNodeCnt();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The signal is polled by the main thread only, the helpers stop with it.
+     */
+    @Override
+    public void setAbortSignal(BooleanSupplier abortSignal) {
+        mainEvaluator.setAbortSignal(abortSignal);
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool && pool != null) {
+            pool.shutdown();
+        }
+    }
+
+}
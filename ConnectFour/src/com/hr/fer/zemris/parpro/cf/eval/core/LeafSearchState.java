@@ -0,0 +1,50 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+/**
+ * Transposition table and move ordering of every thread running the
+ * sequential leaf searches of a parallel engine. <br>
+ * Leaves are many and short, so they don't get their own. Each thread keeps
+ * one table and one ordering for as long as it lives, the way the threads of
+ * an evaluation server do, and a leaf search never shares them with another
+ * thread.
+ *
+ * <p>
+ * Engines scoring positions differently need separate instances, a table
+ * filled by one can't answer the other.
+ * </p>
+ *
+ * @author marko
+ */
+final class LeafSearchState {
+
+    private final ThreadLocal<TranspositionTable> tables;
+    private final ThreadLocal<KillerHistoryOrdering> orderings = new ThreadLocal<>();
+
+    /**
+     * @param tableBytes memory of the table of every thread
+     */
+    LeafSearchState(long tableBytes) {
+        tables = ThreadLocal.withInitial(() -> new TranspositionTable(tableBytes,
+                TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED));
+    }
+
+    TranspositionTable getTable() {
+        return tables.get();
+    }
+
+    /**
+     * Returns the ordering of the calling thread, replaced if it was made for
+     * a game with a different number of moves.
+     *
+     * @param moveIndexCnt number of move indices of the game
+     * @return move ordering
+     */
+    MoveOrdering getOrdering(int moveIndexCnt) {
+        KillerHistoryOrdering ordering = orderings.get();
+        if (ordering == null || ordering.getMoveIndexCnt() != moveIndexCnt) {
+            ordering = new KillerHistoryOrdering(moveIndexCnt);
+            orderings.set(ordering);
+        }
+        return ordering;
+    }
+}
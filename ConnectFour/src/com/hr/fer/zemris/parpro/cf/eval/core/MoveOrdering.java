@@ -0,0 +1,43 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+/**
+ * Stage of the search that decides in which order the legal moves of a state
+ * are visited. <br>
+ * Results of the searches don't depend on the ordering, only the number of
+ * visited positions does: the sooner a move causing a cutoff is searched, the
+ * fewer siblings have to be looked at.
+ *
+ * <p>
+ * Orderings may learn from the cutoffs reported by the search, so an
+ * instance must not be shared between concurrently running searches.
+ * </p>
+ *
+ * @author marko
+ */
+public interface MoveOrdering {
+
+    /**
+     * Writes the legal moves into the buffer in the order they should be
+     * searched.
+     *
+     * @param legalMoves bitmask of legal move indices
+     * @param ply number of moves made since the root state
+     * @param buffer buffer the move indices are written to
+     * @return number of moves written
+     */
+    int order(long legalMoves, int ply, int[] buffer);
+
+    /**
+     * Notifies the ordering that the move caused a cutoff.
+     *
+     * @param moveIndex index of the move
+     * @param ply number of moves made since the root state
+     * @param depth remaining depth at the state the move was made from
+     */
+    void cutoff(int moveIndex, int ply, int depth);
+
+    /**
+     * Notifies the ordering that a new search is starting.
+     */
+    void newSearch();
+}
@@ -0,0 +1,27 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+/**
+ * Moves are visited by increasing index, which is how the searches used to
+ * walk them before orderings were introduced.
+ *
+ * @author marko
+ */
+public class NaturalOrdering implements MoveOrdering {
+
+    @Override
+    public int order(long legalMoves, int ply, int[] buffer) {
+        int cnt = 0;
+        for (long rest = legalMoves; rest != 0; rest &= rest - 1) {
+            buffer[cnt++] = Long.numberOfTrailingZeros(rest);
+        }
+        return cnt;
+    }
+
+    @Override
+    public void cutoff(int moveIndex, int ply, int depth) {
+    }
+
+    @Override
+    public void newSearch() {
+    }
+}
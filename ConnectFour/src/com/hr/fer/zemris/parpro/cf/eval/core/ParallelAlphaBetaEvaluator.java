@@ -0,0 +1,487 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import static com.hr.fer.zemris.parpro.cf.eval.core.AlphaBetaEvaluator.INFINITY;
+import static com.hr.fer.zemris.parpro.cf.eval.core.AlphaBetaEvaluator.MATE;
+import com.hr.fer.zemris.parpro.cf.Game;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Multi-threaded version of {@link AlphaBetaEvaluator} based on the Young
+ * Brothers Wait Concept.
+ *
+ * <p>
+ * At every node of the upper part of the tree the first child (the eldest
+ * brother) is searched alone. Only once its score has narrowed the window are
+ * the remaining children (the young brothers) searched in parallel, each with
+ * its own copy of the game. With good move ordering the eldest brother is
+ * usually the best move, so the young brothers are searched with nearly the
+ * same window the sequential engine would use and the node count stays close
+ * to the sequential one.
+ * </p>
+ *
+ * <p>
+ * When a young brother produces a cutoff, or a win on the very next move
+ * which can't be improved upon, the siblings still queued are cancelled and
+ * the ones in progress stop within a few thousand nodes. Subtrees with at
+ * most <code>sequentialDepth</code> plies left are searched by a sequential
+ * {@link AlphaBetaEvaluator}, with the transposition table and move ordering
+ * its pool thread keeps between the searches (see {@link LeafSearchState}).
+ * Scores are the same as those of the sequential engine, only a forced
+ * result may be found at a different distance.
+ * </p>
+ *
+ * @author marko
+ */
+public class ParallelAlphaBetaEvaluator<S, M, P> implements Evaluator<S, M, P> {
+
+    /** remaining depth below which subtrees aren't split if not told otherwise */
+    public static final int DEFAULT_SEQUENTIAL_DEPTH = 5;
+
+    /** memory of the table of every pool thread */
+    public static final long LEAF_TABLE_BYTES = 4L << 20;
+
+    private static final LeafSearchState LEAF_STATE = new LeafSearchState(LEAF_TABLE_BYTES);
+
+    // how often the waiting thread polls the abort signal
+    private static final long ABORT_POLL_MILLIS = 10;
+
+    private int maxDepth;
+    private final Game<S, M, P> game;
+    private final int sequentialDepth;
+
+    private final ForkJoinPool pool;
+    // pools created by the evaluator are shut down on close
+    private final boolean ownsPool;
+
+    // static order, safe to share between threads
+    private final CenterFirstOrdering ordering;
+
+    private final LongAdder nodeCnt = new LongAdder();
+    private volatile boolean horizonReached;
+    private int completedDepth;
+
+    // nanoTime at which the tasks give up, set by evaluateWithin
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile boolean aborted;
+    private BooleanSupplier abortSignal;
+
+    /**
+     * Creates an evaluator running on the common pool with the default
+     * sequential depth.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     */
+    public ParallelAlphaBetaEvaluator(Game<S, M, P> game, int maxDepth) {
+        this(game, maxDepth, DEFAULT_SEQUENTIAL_DEPTH, ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * Creates an evaluator with its own pool.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param sequentialDepth remaining depth at which subtrees are searched
+     *        sequentially
+     * @param parallelism number of threads of the pool
+     */
+    public ParallelAlphaBetaEvaluator(Game<S, M, P> game, int maxDepth, int sequentialDepth,
+            int parallelism) {
+        this(game, maxDepth, sequentialDepth, new ForkJoinPool(parallelism), true);
+    }
+
+    private ParallelAlphaBetaEvaluator(Game<S, M, P> game, int maxDepth, int sequentialDepth,
+            ForkJoinPool pool, boolean ownsPool) {
+        if (sequentialDepth < 0) {
+            throw new IllegalArgumentException("Sequential depth must not be negative.");
+        }
+        this.game = game;
+        this.maxDepth = maxDepth;
+        this.sequentialDepth = sequentialDepth;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.ordering = new CenterFirstOrdering(game.getMoveIndexCnt());
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of positions visited since the evaluator was created,
+     * summed over all threads.
+     *
+     * @return node count
+     */
+    public long getNodeCnt() {
+        return nodeCnt.sum();
+    }
+
+    /**
+     * Returns the depth of the deepest search completed by the last call to
+     * {@link #evaluateWithin(Object, long)}.
+     *
+     * @return completed depth
+     */
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+
+    /**
+     * The signal is polled by the thread waiting for the search, never by the
+     * pool threads.
+     */
+    @Override
+    public void setAbortSignal(BooleanSupplier abortSignal) {
+        this.abortSignal = abortSignal;
+    }
+
+    @Override
+    public double evaluate(M move) {
+        return evaluateRoot(move, maxDepth) / (double) MATE;
+    }
+
+    @Override
+    public double evaluate(M move, P player) {
+        double eval = evaluateRoot(move, maxDepth) / (double) MATE;
+        return player.equals(game.getCurrPlayer()) ? eval : -eval;
+    }
+
+    /**
+     * Iterative deepening over whole parallel searches, see
+     * {@link IterativeDeepening}. Every search but the first also stops at
+     * the end of the time budget, an interrupted one doesn't count.
+     */
+    @Override
+    public double evaluateWithin(M move, long timeBudgetMillis) {
+        long timeLimit = System.nanoTime() + timeBudgetMillis * 1000000L;
+        completedDepth = 0;
+        try {
+            // deeper search can't find a faster forced result, and nothing
+            // changes if the whole tree fit into the depth
+            Integer score = IterativeDeepening.deepen(1, Integer.MAX_VALUE, timeBudgetMillis,
+                    depth -> {
+                        // the first iteration always runs to completion
+                        deadline = (depth == 1) ? Long.MAX_VALUE : timeLimit;
+                        int depthScore = evaluateRoot(move, depth);
+                        if (aborted) {
+                            return null;
+                        }
+                        completedDepth = depth;
+                        return depthScore;
+                    },
+                    depthScore -> !horizonReached
+                            || Math.abs(depthScore) > AlphaBetaEvaluator.MATE_BOUND);
+            // null only if the abort signal stopped the first search
+            return (score != null) ? score / (double) MATE : 0;
+        } finally {
+            deadline = Long.MAX_VALUE;
+            aborted = false;
+        }
+    }
+
+    /**
+     * Young Brothers Wait applied to the root moves: the first one is searched
+     * alone, the rest in parallel with the window it has established. Scores
+     * of the moves that don't improve on it are upper bounds.
+     */
+    @Override
+    public RootAnalysis<M> analyze() {
+        checkState();
+        horizonReached = false;
+        aborted = false;
+
+        List<M> moves = game.getLegalMoves();
+        int[] orderedMoves = new int[game.getMoveIndexCnt()];
+        int moveCnt = ordering.order(game.getLegalMoveMask(), 0, orderedMoves);
+        boolean symmetric = game.isSymmetricPosition();
+
+        int[] scoresByIndex = new int[game.getMoveIndexCnt()];
+        boolean[] exactByIndex = new boolean[game.getMoveIndexCnt()];
+        boolean[] searched = new boolean[game.getMoveIndexCnt()];
+
+        // eldest brother
+        int alpha = searchRootMove(orderedMoves[0], maxDepth);
+        scoresByIndex[orderedMoves[0]] = alpha;
+        exactByIndex[orderedMoves[0]] = true;
+        searched[orderedMoves[0]] = true;
+
+        // young brothers, all with the window of the eldest one
+        int forkAlpha = alpha;
+        List<RootMoveTask> tasks = new ArrayList<>();
+        for (int i = 1; i < moveCnt; i++) {
+            int moveIndex = orderedMoves[i];
+            if (symmetric && searched[game.getMirroredMoveIndex(moveIndex)]) {
+                continue;
+            }
+            searched[moveIndex] = true;
+            RootMoveTask task = new RootMoveTask(moveIndex, maxDepth, forkAlpha);
+            tasks.add(task);
+            pool.execute(task);
+        }
+        for (RootMoveTask task : tasks) {
+            int score = await(task);
+            scoresByIndex[task.moveIndex] = score;
+            exactByIndex[task.moveIndex] = score > forkAlpha;
+        }
+
+        double[] scores = new double[moves.size()];
+        boolean[] exact = new boolean[moves.size()];
+        int bestIndex = 0;
+        for (int i = 0; i < moves.size(); i++) {
+            int moveIndex = game.getMoveIndex(moves.get(i));
+            if (!searched[moveIndex]) {
+                moveIndex = game.getMirroredMoveIndex(moveIndex);
+            }
+            scores[i] = scoresByIndex[moveIndex] / (double) MATE;
+            exact[i] = exactByIndex[moveIndex];
+            if (scores[i] > scores[bestIndex]) {
+                bestIndex = i;
+            }
+        }
+        return new RootAnalysis<>(moves, scores, exact, bestIndex,
+                Collections.singletonList(moves.get(bestIndex)));
+    }
+
+    private int evaluateRoot(M move, int depth) {
+        checkState();
+        if (!game.isLegalMove(move)) {
+            throw new IllegalArgumentException("You provided an illegal move!");
+        }
+        horizonReached = false;
+        aborted = false;
+        return searchRootMove(game.getMoveIndex(move), depth);
+    }
+
+    /**
+     * Searches the root move with the full window.
+     */
+    private int searchRootMove(int moveIndex, int depth) {
+        RootMoveTask task = new RootMoveTask(moveIndex, depth, -INFINITY);
+        pool.execute(task);
+        return await(task);
+    }
+
+    /**
+     * Waits for the task, polling the abort signal in the meantime. The
+     * signal is only ever polled by the calling thread, once it fires the
+     * tasks give up.
+     */
+    private <T> T await(ForkJoinTask<T> task) {
+        if (abortSignal == null) {
+            return task.join();
+        }
+        while (true) {
+            try {
+                return task.get(ABORT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                if (!aborted && abortSignal.getAsBoolean()) {
+                    aborted = true;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                aborted = true;
+                return task.join();
+            } catch (ExecutionException ex) {
+                // rethrows what the task threw
+                return task.join();
+            }
+        }
+    }
+
+    private void checkState() {
+        if (game.isOver()) {
+            throw new IllegalArgumentException("The state of the game is terminal."
+                    + " No more moves can be made!");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Searches a root move with the window (alpha, infinity), returns the
+     * score from the point of view of the player making it.
+     */
+    private class RootMoveTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int moveIndex;
+        private final int depth;
+        private final int alpha;
+
+        RootMoveTask(int moveIndex, int depth, int alpha) {
+            this.moveIndex = moveIndex;
+            this.depth = depth;
+            this.alpha = alpha;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (depth == 0) {
+                return 0;
+            }
+            Game<S, M, P> copy = game.copy();
+            nodeCnt.increment();
+            copy.makeMove(moveIndex);
+            if (copy.isOver()) {
+                return copy.isDraw() ? 0 : MATE - 1;
+            }
+            return -new NodeTask(copy, depth - 1, -INFINITY, -alpha, 1, null).invoke();
+        }
+    }
+
+    /**
+     * Searches a (non-terminal) state, the counterpart of
+     * {@link AlphaBetaEvaluator}'s negamax. The game copy belongs to the task
+     * alone.
+     */
+    private class NodeTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Game<S, M, P> game;
+        private final int depth;
+        private final int alpha;
+        private final int beta;
+        private final int ply;
+        private final NodeTask parent;
+
+        // set once the result is known, remaining children quit
+        private volatile boolean decided;
+
+        NodeTask(Game<S, M, P> game, int depth, int alpha, int beta, int ply, NodeTask parent) {
+            this.game = game;
+            this.depth = depth;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.ply = ply;
+            this.parent = parent;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (isAbandoned()) {
+                // nobody will look at the result
+                return 0;
+            }
+            if (depth <= sequentialDepth) {
+                AlphaBetaEvaluator<S, M, P> evaluator = new AlphaBetaEvaluator<>(game,
+                        depth, LEAF_STATE.getTable(),
+                        LEAF_STATE.getOrdering(game.getMoveIndexCnt()));
+                int score = evaluator.searchSubtree(depth, alpha, beta, ply, this::isAbandoned);
+                nodeCnt.add(evaluator.getNodeCnt());
+                if (evaluator.isHorizonReached()) {
+                    horizonReached = true;
+                }
+                return score;
+            }
+
+            int[] moves = new int[game.getMoveIndexCnt()];
+            int moveCnt = ordering.order(game.getLegalMoveMask(), ply, moves);
+            // nothing beats winning with the next move
+            int maxScore = MATE - (ply + 1);
+
+            // eldest brother
+            int best = searchChild(moves[0], alpha, beta, null);
+            int currAlpha = Math.max(alpha, best);
+            if (currAlpha >= beta || best >= maxScore) {
+                return best;
+            }
+
+            // young brothers, in parallel with the narrowed window
+            List<NodeTask> children = new ArrayList<>(moveCnt - 1);
+            for (int i = 1; i < moveCnt; i++) {
+                int score = searchChild(moves[i], currAlpha, beta, children);
+                if (score > best) {
+                    // ended the game, no task needed
+                    best = score;
+                    currAlpha = Math.max(currAlpha, best);
+                    if (currAlpha >= beta || best >= maxScore) {
+                        cancelChildren(children);
+                        return best;
+                    }
+                }
+            }
+            for (int i = 0; i < children.size(); i++) {
+                int score = -children.get(i).join();
+                if (score > best) {
+                    best = score;
+                    if (best >= beta || best >= maxScore) {
+                        cancelChildren(children.subList(i + 1, children.size()));
+                        return best;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Scores a child directly if the move ends the game. Otherwise the
+         * child is searched in this thread when <code>children</code> is
+         * null, or forked and added to it.
+         *
+         * @return score of the child, or -infinity if it was forked
+         */
+        private int searchChild(int moveIndex, int alpha, int beta, List<NodeTask> children) {
+            nodeCnt.increment();
+            game.makeMove(moveIndex);
+            if (game.isOver()) {
+                int score = game.isDraw() ? 0 : MATE - (ply + 1);
+                game.unmakeMove();
+                return score;
+            }
+            NodeTask child = new NodeTask(game.copy(), depth - 1, -beta, -alpha, ply + 1, this);
+            game.unmakeMove();
+            if (children == null) {
+                return -child.invoke();
+            }
+            children.add(child);
+            child.fork();
+            return -INFINITY;
+        }
+
+        private void cancelChildren(List<NodeTask> children) {
+            decided = true;
+            for (NodeTask child : children) {
+                child.cancel(false);
+            }
+        }
+
+        private boolean isAbandoned() {
+            if (aborted) {
+                return true;
+            }
+            for (NodeTask task = this; task != null; task = task.parent) {
+                if (task.decided) {
+                    return true;
+                }
+            }
+            if (deadline != Long.MAX_VALUE && System.nanoTime() >= deadline) {
+                // the whole search is thrown away
+                aborted = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Multi-threaded version of {@link BruteForceEvaluator} running on a
+ * {@link ForkJoinPool}.
+ *
+ * <p>
+ * The first <code>splitDepth</code> plies of the tree are split into tasks,
+ * one per move, and every task works on its own copy of the game (see
+ * {@link Game#copy()}), so the game passed to the evaluator is never
+ * modified. Below the split depth each subtree is searched sequentially by a
+ * {@link BruteForceEvaluator}. Results are combined exactly like in the
+ * sequential engine, so the scores are the same to the last bit.
+ * </p>
+ *
+ * <p>
+ * Once a child returns a forced result (+-1) for the player choosing between
+ * the children, its siblings aren't needed anymore: the ones that haven't
+ * started are cancelled and the ones in progress finish without waiting for
+ * their own children. Every pool thread searches its subtrees with its own
+ * transposition table and move ordering, kept between the searches, see
+ * {@link LeafSearchState}.
+ * </p>
+ *
+ * @author marko
+ */
+public class ParallelBruteForceEvaluator<S, M, P> implements Evaluator<S, M, P> {
+
+    /** plies split into tasks if not told otherwise, 7^4 tasks on an empty board */
+    public static final int DEFAULT_SPLIT_DEPTH = 4;
+
+    /** memory of the table of every pool thread */
+    public static final long LEAF_TABLE_BYTES = 4L << 20;
+
+    private static final LeafSearchState LEAF_STATE = new LeafSearchState(LEAF_TABLE_BYTES);
+
+    // how often the waiting thread polls the abort signal
+    private static final long ABORT_POLL_MILLIS = 10;
+
+    private int maxDepth;
+    private final Game<S, M, P> game;
+    private final int splitDepth;
+
+    private final ForkJoinPool pool;
+    // pools created by the evaluator are shut down on close
+    private final boolean ownsPool;
+
+    private final LongAdder nodeCnt = new LongAdder();
+    private volatile boolean horizonReached;
+    private int completedDepth;
+
+    // set once the abort signal fires, the tasks give up
+    private volatile boolean aborted;
+    private BooleanSupplier abortSignal;
+
+    /**
+     * Creates an evaluator running on the common pool with the default split
+     * depth.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     */
+    public ParallelBruteForceEvaluator(Game<S, M, P> game, int maxDepth) {
+        this(game, maxDepth, DEFAULT_SPLIT_DEPTH, ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * Creates an evaluator with its own pool.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param splitDepth number of plies from the root split into tasks
+     * @param parallelism number of threads of the pool
+     */
+    public ParallelBruteForceEvaluator(Game<S, M, P> game, int maxDepth, int splitDepth,
+            int parallelism) {
+        this(game, maxDepth, splitDepth, new ForkJoinPool(parallelism), true);
+    }
+
+    private ParallelBruteForceEvaluator(Game<S, M, P> game, int maxDepth, int splitDepth,
+            ForkJoinPool pool, boolean ownsPool) {
+        if (splitDepth < 0) {
+            throw new IllegalArgumentException("Split depth must not be negative.");
+        }
+        this.game = game;
+        this.maxDepth = maxDepth;
+        this.splitDepth = splitDepth;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getSplitDepth() {
+        return splitDepth;
+    }
+
+    /**
+     * Returns the number of positions visited since the evaluator was created,
+     * summed over all threads.
+     *
+     * @return node count
+     */
+    public long getNodeCnt() {
+        return nodeCnt.sum();
+    }
+
+    /**
+     * Returns the depth of the deepest search completed by the last call to
+     * {@link #evaluateWithin(Object, long)}.
+     *
+     * @return completed depth
+     */
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+
+    /**
+     * The signal is polled by the thread waiting for the search, never by the
+     * pool threads.
+     */
+    @Override
+    public void setAbortSignal(BooleanSupplier abortSignal) {
+        this.abortSignal = abortSignal;
+    }
+
+    @Override
+    public double evaluate(M move) {
+        return evaluateRoot(move, game.getCurrPlayer(), maxDepth);
+    }
+
+    @Override
+    public double evaluate(M move, P player) {
+        return evaluateRoot(move, player, maxDepth);
+    }
+
+    /**
+     * Iterative deepening over whole parallel searches, see
+     * {@link IterativeDeepening}. A running search is interrupted only by the
+     * abort signal, and doesn't count then.
+     */
+    @Override
+    public double evaluateWithin(M move, long timeBudgetMillis) {
+        P clientPlayer = game.getCurrPlayer();
+        completedDepth = 0;
+        // forced results don't change with depth, nor does anything else if
+        // the whole tree fit into the depth
+        Double eval = IterativeDeepening.deepen(1, Integer.MAX_VALUE, timeBudgetMillis,
+                depth -> {
+                    double depthEval = evaluateRoot(move, clientPlayer, depth);
+                    if (aborted) {
+                        return null;
+                    }
+                    completedDepth = depth;
+                    return depthEval;
+                },
+                depthEval -> !horizonReached || depthEval == 1 || depthEval == -1);
+        // null only if the abort signal stopped the first search
+        return (eval != null) ? eval : 0;
+    }
+
+    /**
+     * Searches all the root moves at the same time, one task per move. Only
+     * one move of each mirrored pair is searched at a symmetric root.
+     */
+    @Override
+    public RootAnalysis<M> analyze() {
+        checkState();
+        P clientPlayer = game.getCurrPlayer();
+        horizonReached = false;
+        aborted = false;
+
+        List<M> moves = game.getLegalMoves();
+        boolean symmetric = game.isSymmetricPosition();
+        List<MoveTask> tasksByIndex = new ArrayList<>(
+                Collections.nCopies(game.getMoveIndexCnt(), (MoveTask) null));
+        for (M move : moves) {
+            int moveIndex = game.getMoveIndex(move);
+            if (symmetric && tasksByIndex.get(game.getMirroredMoveIndex(moveIndex)) != null) {
+                continue;
+            }
+            MoveTask task = new MoveTask(game.copy(), moveIndex, maxDepth, 0, null, clientPlayer);
+            tasksByIndex.set(moveIndex, task);
+            pool.execute(task);
+        }
+
+        double[] scores = new double[moves.size()];
+        boolean[] exact = new boolean[moves.size()];
+        int bestIndex = 0;
+        for (int i = 0; i < moves.size(); i++) {
+            int moveIndex = game.getMoveIndex(moves.get(i));
+            MoveTask task = tasksByIndex.get(moveIndex);
+            if (task == null) {
+                task = tasksByIndex.get(game.getMirroredMoveIndex(moveIndex));
+            }
+            scores[i] = await(task);
+            exact[i] = true;
+            if (scores[i] > scores[bestIndex]) {
+                bestIndex = i;
+            }
+        }
+        return new RootAnalysis<>(moves, scores, exact, bestIndex,
+                Collections.singletonList(moves.get(bestIndex)));
+    }
+
+    private double evaluateRoot(M move, P clientPlayer, int depth) {
+        checkState();
+        if (!game.isLegalMove(move)) {
+            throw new IllegalArgumentException("You provided an illegal move!");
+        }
+        horizonReached = false;
+        aborted = false;
+        MoveTask task = new MoveTask(game.copy(), game.getMoveIndex(move), depth, 0, null,
+                clientPlayer);
+        pool.execute(task);
+        return await(task);
+    }
+
+    /**
+     * Waits for the task, polling the abort signal in the meantime. The
+     * signal is only ever polled by the calling thread, once it fires the
+     * tasks give up.
+     */
+    private <T> T await(ForkJoinTask<T> task) {
+        if (abortSignal == null) {
+            return task.join();
+        }
+        while (true) {
+            try {
+                return task.get(ABORT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                if (!aborted && abortSignal.getAsBoolean()) {
+                    aborted = true;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                aborted = true;
+                return task.join();
+            } catch (ExecutionException ex) {
+                // rethrows what the task threw
+                return task.join();
+            }
+        }
+    }
+
+    private void checkState() {
+        if (game.isOver()) {
+            throw new IllegalArgumentException("The state of the game is terminal."
+                    + " No more moves can be made!");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Evaluates a single move, the counterpart of
+     * {@link BruteForceEvaluator}'s recursive evaluation. The game copy is in
+     * the state before the move and belongs to the task alone.
+     */
+    private class MoveTask extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Game<S, M, P> game;
+        private final int moveIndex;
+        private final int depth;
+        private final int ply;
+        private final MoveTask parent;
+        private final P clientPlayer;
+
+        // set once a child has decided the result, remaining children quit
+        private volatile boolean decided;
+
+        MoveTask(Game<S, M, P> game, int moveIndex, int depth, int ply, MoveTask parent,
+                P clientPlayer) {
+            this.game = game;
+            this.moveIndex = moveIndex;
+            this.depth = depth;
+            this.ply = ply;
+            this.parent = parent;
+            this.clientPlayer = clientPlayer;
+        }
+
+        @Override
+        protected Double compute() {
+            if (isAbandoned()) {
+                // nobody will look at the result
+                return 0.0;
+            }
+            if (ply >= splitDepth || depth <= 1) {
+                BruteForceEvaluator<S, M, P> evaluator = new BruteForceEvaluator<>(game,
+                        depth, LEAF_STATE.getTable(),
+                        LEAF_STATE.getOrdering(game.getMoveIndexCnt()));
+                evaluator.setAbortSignal(this::isAbandoned);
+                double eval = evaluator.evaluate(game.getMove(moveIndex), clientPlayer);
+                nodeCnt.add(evaluator.getNodeCnt());
+                if (evaluator.isHorizonReached()) {
+                    horizonReached = true;
+                }
+                return eval;
+            }
+
+            nodeCnt.increment();
+            boolean clientMoves = game.getCurrPlayer() == clientPlayer;
+            game.makeMove(moveIndex);
+            if (game.isOver()) {
+                if (game.isDraw()) {
+                    return 0.0;
+                }
+                return clientMoves ? 1.0 : -1.0;
+            }
+            return expand();
+        }
+
+        /**
+         * Evaluates the children in parallel and combines the results the
+         * same way {@link BruteForceEvaluator} does.
+         */
+        private double expand() {
+            long legalMoves = game.getLegalMoveMask();
+            List<MoveTask> children = new ArrayList<>(Long.bitCount(legalMoves));
+            for (long rest = legalMoves; rest != 0; rest &= rest - 1) {
+                children.add(new MoveTask(game.copy(), Long.numberOfTrailingZeros(rest),
+                        depth - 1, ply + 1, this, clientPlayer));
+            }
+            // the first child runs in this thread, the rest can be stolen
+            for (int i = children.size() - 1; i > 0; i--) {
+                children.get(i).fork();
+            }
+
+            boolean clientMoves = game.getCurrPlayer() == clientPlayer;
+            boolean allLose = true;
+            boolean allWin = true;
+            double[] evals = new double[game.getMoveIndexCnt()];
+            for (int i = 0; i < children.size(); i++) {
+                MoveTask child = children.get(i);
+                double eval = (i == 0) ? child.invoke() : child.join();
+                if (eval > -1) {
+                    allLose = false;
+                }
+                if (eval != 1) {
+                    allWin = false;
+                }
+                if ((eval == 1 && clientMoves) || (eval == -1 && !clientMoves)) {
+                    decided = true;
+                    for (int j = i + 1; j < children.size(); j++) {
+                        children.get(j).cancel(false);
+                    }
+                    return eval;
+                }
+                evals[child.moveIndex] = eval;
+            }
+            if (allWin) {
+                return 1;
+            }
+            if (allLose) {
+                return -1;
+            }
+            return BruteForceEvaluator.average(game, legalMoves, evals);
+        }
+
+        private boolean isAbandoned() {
+            if (aborted) {
+                return true;
+            }
+            for (MoveTask task = parent; task != null; task = task.parent) {
+                if (task.decided) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+/**
+ * Ordering that now and then swaps the first move proposed by another
+ * ordering with a later one. <br>
+ * Used by the helper threads of {@link LazySmpEvaluator}, so that they don't
+ * all walk the tree in the same order as the main thread.
+ *
+ * @author marko
+ */
+class PerturbedOrdering implements MoveOrdering {
+
+    private final MoveOrdering base;
+    private long state;
+
+    /**
+     * Creates the ordering.
+     *
+     * @param base ordering being perturbed
+     * @param seed seed of the swaps, different for every helper thread
+     */
+    PerturbedOrdering(MoveOrdering base, long seed) {
+        this.base = base;
+        // xorshift state must not be 0
+        this.state = seed * 0x9E3779B97F4A7C15L | 1;
+    }
+
+    @Override
+    public int order(long legalMoves, int ply, int[] buffer) {
+        int cnt = base.order(legalMoves, ply, buffer);
+        state ^= state << 13;
+        state ^= state >>> 7;
+        state ^= state << 17;
+        // one node in four gets a different first move
+        if (cnt > 1 && (state & 3) == 0) {
+            int other = 1 + (int) ((state >>> 2) % (cnt - 1));
+            int first = buffer[0];
+            buffer[0] = buffer[other];
+            buffer[other] = first;
+        }
+        return cnt;
+    }
+
+    @Override
+    public void cutoff(int moveIndex, int ply, int depth) {
+        base.cutoff(moveIndex, ply, depth);
+    }
+
+    @Override
+    public void newSearch() {
+        base.newSearch();
+    }
+}
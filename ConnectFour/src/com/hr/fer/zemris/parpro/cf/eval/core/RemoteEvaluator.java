@@ -4,42 +4,122 @@ import com.hr.fer.zemris.parpro.cf.eval.exceptions.DuringEvaluationException;
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCloseException;
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCreationException;
 import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.eval.wire.EvaluationResponse;
+import com.hr.fer.zemris.parpro.cf.eval.wire.WireProtocol;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Evaluator delegating the searches to an evaluation server.
+ *
+ * <p>
+ * By default the {@link WireProtocol} is used, in which the position is sent
+ * as its move history and several moves can be evaluated with one request.
+ * The original protocol, sending the whole game with Java serialization for
+ * every move, is still available for servers that weren't upgraded.
+ * </p>
+ *
+ * <p>
+ * With the binary protocol requests are pipelined: {@link #evaluateAsync(Object)}
+ * sends the request and returns at once, any number of requests can be
+ * waiting for their results on the one connection. Responses are read by a
+ * background thread and matched to the requests by their ids, so the server
+ * is free to answer them in any order. The position is captured when the
+ * request is sent, the game may be changed right after.
+ * </p>
  *
  * @author marko
  */
 public class RemoteEvaluator<S, M, P> implements Evaluator<S, M, P> {
 
+    // how long close waits for the answers to requests still pending
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+
     private int maxDepth;
     private final Game<S, M, P> game;
 
     private final String hostName;
     private final int port;
 
+    private final boolean legacyProtocol;
+
+    // binary protocol
+    private final SocketChannel channel;
+    // guarded by itself, requests may be sent from several threads
+    private final ByteBuffer writeBuffer;
+    private final Thread responseReader;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    // requests waiting for their responses, by id
+    private final Map<Integer, CompletableFuture<double[]>> pending = new ConcurrentHashMap<>();
+    // set by the response reader once the connection can't be used anymore
+    private volatile boolean broken;
+
+    // legacy protocol
     private final Socket clientSocket;
     private final ObjectOutputStream outToServer;
     private final ObjectInputStream inFromServer;
 
+    private final SymmetricRootCache rootCache = new SymmetricRootCache();
+
     public RemoteEvaluator(Game<S, M, P> game, int maxDepth, String hostName, int port)
             throws EvaluatorCreationException {
+        this(game, maxDepth, hostName, port, false);
+    }
+
+    /**
+     * Creates the evaluator and connects to the server.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param hostName server host
+     * @param port server port
+     * @param legacyProtocol whether to use the Java serialization protocol
+     * @throws EvaluatorCreationException if the connection can't be made
+     */
+    public RemoteEvaluator(Game<S, M, P> game, int maxDepth, String hostName, int port,
+            boolean legacyProtocol) throws EvaluatorCreationException {
 
         this.game = game;
         this.maxDepth = maxDepth;
 
         this.hostName = hostName;
         this.port = port;
+        this.legacyProtocol = legacyProtocol;
         
         try {
-            clientSocket = new Socket(hostName, port);
-            outToServer = new ObjectOutputStream(clientSocket.getOutputStream());
-            inFromServer = new ObjectInputStream(clientSocket.getInputStream());
+            if (legacyProtocol) {
+                channel = null;
+                writeBuffer = null;
+                responseReader = null;
+                clientSocket = new Socket(hostName, port);
+                outToServer = new ObjectOutputStream(clientSocket.getOutputStream());
+                inFromServer = new ObjectInputStream(clientSocket.getInputStream());
+            } else {
+                channel = SocketChannel.open(new InetSocketAddress(hostName, port));
+                writeBuffer = WireProtocol.allocateBuffer();
+                clientSocket = null;
+                outToServer = null;
+                inFromServer = null;
+                responseReader = new Thread(this::readResponses,
+                        "RemoteEvaluator " + hostName + ":" + port);
+                responseReader.setDaemon(true);
+                responseReader.start();
+            }
         } catch (IOException ex) {
             System.out.println(ex.getMessage());
             throw new EvaluatorCreationException("Something happened to socket"
@@ -57,6 +137,163 @@ public class RemoteEvaluator<S, M, P> implements Evaluator<S, M, P> {
 
     @Override
     public double evaluate(M move) throws DuringEvaluationException {
+        return await(evaluateAsync(move));
+    }
+
+    /**
+     * Sends the request for the evaluation of the move without waiting for
+     * the result. With the legacy protocol the evaluation is done before the
+     * method returns.
+     *
+     * @param move move that is being evaluated
+     * @return evaluation, completed exceptionally with a
+     *         {@link DuringEvaluationException} if the server fails
+     */
+    public CompletableFuture<Double> evaluateAsync(M move) {
+        // in a symmetric position the mirrored move may be evaluated already,
+        // no need to bother the server with it
+        boolean symmetric = game.isSymmetricPosition();
+        long rootKey = game.getPositionKey();
+        int depth = maxDepth;
+        int moveIndex = game.getMoveIndex(move);
+        if (symmetric) {
+            double cached;
+            synchronized (rootCache) {
+                cached = rootCache.get(rootKey, depth, game.getMirroredMoveIndex(moveIndex));
+            }
+            if (!Double.isNaN(cached)) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return requestEvaluation(move, 0).thenApply(eval -> {
+            if (symmetric) {
+                synchronized (rootCache) {
+                    rootCache.put(rootKey, depth, moveIndex, eval);
+                }
+            }
+            return eval;
+        });
+    }
+
+    /**
+     * Evaluates all the moves at once, each move in its own request, so the
+     * server searches them concurrently. Mirrored moves of a symmetric
+     * position aren't requested. The server doesn't report principal
+     * variations, so the returned one consists of the best move alone.
+     */
+    @Override
+    public RootAnalysis<M> analyze() throws DuringEvaluationException {
+        List<M> moves = game.getLegalMoves();
+        boolean symmetric = game.isSymmetricPosition();
+        List<CompletableFuture<Double>> requested = new ArrayList<>(moves.size());
+        for (M move : moves) {
+            int moveIndex = game.getMoveIndex(move);
+            int mirrored = game.getMirroredMoveIndex(moveIndex);
+            requested.add((!symmetric || mirrored >= moveIndex)
+                    ? requestEvaluation(move, 0) : null);
+        }
+        double[] scores = new double[moves.size()];
+        boolean[] exact = new boolean[moves.size()];
+        double[] evalByIndex = new double[game.getMoveIndexCnt()];
+        for (int i = 0; i < moves.size(); i++) {
+            if (requested.get(i) != null) {
+                int moveIndex = game.getMoveIndex(moves.get(i));
+                evalByIndex[moveIndex] = await(requested.get(i));
+                if (symmetric) {
+                    evalByIndex[game.getMirroredMoveIndex(moveIndex)] = evalByIndex[moveIndex];
+                }
+            }
+        }
+        int bestIndex = 0;
+        for (int i = 0; i < moves.size(); i++) {
+            scores[i] = evalByIndex[game.getMoveIndex(moves.get(i))];
+            exact[i] = true;
+            if (scores[i] > scores[bestIndex]) {
+                bestIndex = i;
+            }
+        }
+        return new RootAnalysis<>(moves, scores, exact, bestIndex,
+                Collections.singletonList(moves.get(bestIndex)));
+    }
+
+    @Override
+    public double evaluateWithin(M move, long timeBudgetMillis) throws DuringEvaluationException {
+        return await(evaluateWithinAsync(move, timeBudgetMillis));
+    }
+
+    /**
+     * Asynchronous version of {@link #evaluateWithin(Object, long)}, see
+     * {@link #evaluateAsync(Object)}. The legacy protocol can't carry the
+     * time budget, such requests fail.
+     *
+     * @param move move that is being evaluated
+     * @param timeBudgetMillis time budget of the evaluation
+     * @return evaluation
+     */
+    public CompletableFuture<Double> evaluateWithinAsync(M move, long timeBudgetMillis) {
+        // iterative deepening runs on the server, max depth is ignored there
+        return requestEvaluation(move, timeBudgetMillis);
+    }
+
+    /**
+     * Tells whether requests can still be sent. A lost connection is noticed
+     * only with the binary protocol.
+     *
+     * @return false once the connection to the server is lost
+     */
+    public boolean isConnected() {
+        return !broken;
+    }
+
+    /**
+     * Waits for the result of the request.
+     */
+    private static double await(CompletableFuture<Double> result) throws DuringEvaluationException {
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof DuringEvaluationException) {
+                throw (DuringEvaluationException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends the evaluation request.
+     *
+     * @param move move that is being evaluated
+     * @param timeBudgetMillis time budget of the evaluation, 0 if the search
+     *        should go to the fixed max depth
+     * @return evaluation received from the server
+     */
+    private CompletableFuture<Double> requestEvaluation(M move, long timeBudgetMillis) {
+        if (!legacyProtocol) {
+            return sendRequest(new int[]{game.getMoveIndex(move)}, 1, timeBudgetMillis)
+                    .thenApply(evals -> evals[0]);
+        }
+        CompletableFuture<Double> result = new CompletableFuture<>();
+        if (timeBudgetMillis > 0) {
+            // the old protocol has no room for the budget, servers still
+            // speaking it wouldn't read it
+            result.completeExceptionally(new DuringEvaluationException(
+                    "Timed evaluation isn't supported by the legacy protocol."));
+            return result;
+        }
+        try {
+            result.complete(requestLegacyEvaluation(move));
+        } catch (DuringEvaluationException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the evaluation request in the legacy protocol and waits for the
+     * result.
+     */
+    private synchronized double requestLegacyEvaluation(M move)
+            throws DuringEvaluationException {
         // we are delegating the job to the remote server that runs some
         // particular version of Evaluator -- BruteForceEvaluator
 
@@ -68,7 +305,10 @@ public class RemoteEvaluator<S, M, P> implements Evaluator<S, M, P> {
             // ZEROTH, send that that there is some data to be received
             outToServer.writeBoolean(true);
             
-            // FIRST, send the game object
+            // FIRST, send the game object; the stream would otherwise send
+            // only a back reference to the game written by the previous
+            // request, and the server would evaluate the old position
+            outToServer.reset();
             outToServer.writeObject(game);
 
             // SECOND, send the maxDepth
@@ -92,8 +332,114 @@ public class RemoteEvaluator<S, M, P> implements Evaluator<S, M, P> {
         return eval;
     }
 
+    /**
+     * Sends the binary evaluation request, its result is completed by the
+     * response reader.
+     *
+     * @param moveIndices indices of the moves being evaluated
+     * @param moveCnt number of moves being evaluated
+     * @param timeBudgetMillis time budget of every move, 0 if the search
+     *        should go to the fixed max depth
+     * @return evaluations received from the server, in the requested order
+     */
+    private CompletableFuture<double[]> sendRequest(int[] moveIndices, int moveCnt,
+            long timeBudgetMillis) {
+        int id = nextRequestId.getAndIncrement();
+        CompletableFuture<double[]> result = new CompletableFuture<>();
+        pending.put(id, result);
+        try {
+            synchronized (writeBuffer) {
+                WireProtocol.writeEvaluateRequest(writeBuffer, id, game, maxDepth,
+                        timeBudgetMillis, moveIndices, moveCnt);
+                WireProtocol.writeFrame(channel, writeBuffer);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(RemoteEvaluator.class.getName()).log(Level.SEVERE, null, ex);
+            fail(id, "Exc. during sending of data to remote evaluator.");
+        }
+        // the reader may have given up before the request was registered
+        if (broken) {
+            fail(id, "Connection to remote evaluator is lost.");
+        }
+        return result.thenApply(evals -> {
+            if (evals.length != moveCnt) {
+                throw new CompletionException(new DuringEvaluationException(
+                        "Remote evaluator returned " + evals.length
+                        + " evaluations for " + moveCnt + " moves."));
+            }
+            return evals;
+        });
+    }
+
+    /**
+     * Completes the requests with the responses, until the server closes the
+     * connection or it fails. Requests still waiting then fail.
+     */
+    private void readResponses() {
+        ByteBuffer readBuffer = WireProtocol.allocateBuffer();
+        try {
+            ByteBuffer frame;
+            while ((frame = WireProtocol.readFrame(channel, readBuffer)) != null) {
+                EvaluationResponse response = WireProtocol.readResponse(frame);
+                CompletableFuture<double[]> result = pending.remove(response.getId());
+                if (result == null) {
+                    Logger.getLogger(RemoteEvaluator.class.getName()).log(Level.WARNING,
+                            "Response to unknown request {0}", response.getId());
+                } else if (response.isError()) {
+                    result.completeExceptionally(new DuringEvaluationException(
+                            "Remote evaluator failed to evaluate the moves."));
+                } else {
+                    result.complete(response.getEvals());
+                }
+            }
+        } catch (IOException ex) {
+            if (channel.isOpen()) {
+                Logger.getLogger(RemoteEvaluator.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } finally {
+            broken = true;
+            for (Integer id : pending.keySet()) {
+                fail(id, "Connection to remote evaluator is lost.");
+            }
+        }
+    }
+
+    private void fail(int id, String message) {
+        CompletableFuture<double[]> result = pending.remove(id);
+        if (result != null) {
+            result.completeExceptionally(new DuringEvaluationException(message));
+        }
+    }
+
     @Override
     public void close() throws EvaluatorCloseException {
+        if (!legacyProtocol) {
+            try {
+                try {
+                    // nobody is listening to a broken connection anymore
+                    if (!broken) {
+                        // notify server that there's no more data to communicate;
+                        // it answers the requests still pending and closes the
+                        // connection
+                        synchronized (writeBuffer) {
+                            WireProtocol.writeCloseRequest(writeBuffer);
+                            WireProtocol.writeFrame(channel, writeBuffer);
+                        }
+                        // a stalled server isn't waited for, closing the channel
+                        // fails whatever it didn't answer
+                        responseReader.join(CLOSE_TIMEOUT_MILLIS);
+                    }
+                } finally {
+                    channel.close();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                Logger.getLogger(RemoteEvaluator.class.getName()).log(Level.SEVERE, null, ex);
+                throw new EvaluatorCloseException("Something happened during closing of the channel.");
+            }
+            return;
+        }
         try {
             // notify server that there's no more data to communicate
             outToServer.writeBoolean(false);
@@ -0,0 +1,101 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a search over all the moves from the current state, see
+ * {@link Evaluator#analyze()}. <br>
+ * Scores are from the point of view of the player on turn.
+ *
+ * @author marko
+ * @param <M> type of the move
+ */
+public class RootAnalysis<M> {
+
+    private final List<M> moves;
+    private final double[] scores;
+    private final boolean[] exact;
+    private final int bestIndex;
+    private final List<M> principalVariation;
+
+    /**
+     * Creates the analysis.
+     *
+     * @param moves legal moves, in the order they were listed by the game
+     * @param scores score of each move
+     * @param exact for each move, false if the score is only an upper bound
+     * @param bestIndex position of the best move in the list
+     * @param principalVariation expected line of play, starting with the best
+     *        move
+     */
+    public RootAnalysis(List<M> moves, double[] scores, boolean[] exact, int bestIndex,
+            List<M> principalVariation) {
+        this.moves = Collections.unmodifiableList(moves);
+        this.scores = scores;
+        this.exact = exact;
+        this.bestIndex = bestIndex;
+        this.principalVariation = Collections.unmodifiableList(principalVariation);
+    }
+
+    public List<M> getMoves() {
+        return moves;
+    }
+
+    public int getMoveCnt() {
+        return moves.size();
+    }
+
+    /**
+     * Returns the score of i-th move in {@link #getMoves()}.
+     *
+     * @param i position of the move
+     * @return score of the move
+     */
+    public double getScore(int i) {
+        return scores[i];
+    }
+
+    /**
+     * Checks if the score of i-th move is exact. Pruning searches only prove
+     * that the moves other than the best one aren't better, their scores may
+     * be upper bounds.
+     *
+     * @param i position of the move
+     * @return true if the score is exact, false if it is an upper bound
+     */
+    public boolean isExact(int i) {
+        return exact[i];
+    }
+
+    public M getBestMove() {
+        return moves.get(bestIndex);
+    }
+
+    public double getBestScore() {
+        return scores[bestIndex];
+    }
+
+    /**
+     * Returns the line of play both players are expected to follow, starting
+     * with the best move. The line may be shorter than the search depth if
+     * parts of the tree weren't kept.
+     *
+     * @return principal variation
+     */
+    public List<M> getPrincipalVariation() {
+        return principalVariation;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < moves.size(); i++) {
+            sb.append(String.format("%s: %f%s%n", moves.get(i), scores[i],
+                    exact[i] ? "" : " (at most)"));
+        }
+        sb.append("best: ").append(getBestMove())
+                .append(", principal variation: ").append(principalVariation);
+        return sb.toString();
+    }
+}
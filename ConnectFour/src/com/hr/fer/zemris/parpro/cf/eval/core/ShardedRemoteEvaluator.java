@@ -0,0 +1,353 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.eval.exceptions.DuringEvaluationException;
+import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCloseException;
+import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCreationException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluator spreading the work over several evaluation servers.
+ *
+ * <p>
+ * A {@link RemoteEvaluator} is kept for every server. Each move goes to the
+ * server with the fewest requests in flight, so {@link #analyze()} searches
+ * the root moves on all the servers at once and a slow server simply gets
+ * fewer of them. A request that fails, or hasn't been answered after the
+ * stall timeout, is sent again to a server that hasn't seen it yet; the
+ * first answer wins. Servers whose connection is lost aren't used anymore.
+ * </p>
+ *
+ * <p>
+ * Only whole root moves are distributed. Combining the scores of subtrees
+ * depends on the engine the servers run, which the client doesn't know.
+ * The game must not be changed while an evaluation is running, retries
+ * send the position again.
+ * </p>
+ *
+ * @author marko
+ */
+public class ShardedRemoteEvaluator<S, M, P> implements Evaluator<S, M, P> {
+
+    /** time after which an unanswered request is sent to another server */
+    public static final long DEFAULT_STALL_MILLIS = 30_000;
+
+    private final Game<S, M, P> game;
+    private int maxDepth;
+    private final long stallMillis;
+
+    private final List<Shard<S, M, P>> shards = new ArrayList<>();
+    // breaks ties between equally loaded servers
+    private final AtomicInteger nextShard = new AtomicInteger();
+    // fires the stall timeouts
+    private final ScheduledExecutorService timer;
+
+    private final SymmetricRootCache rootCache = new SymmetricRootCache();
+
+    public ShardedRemoteEvaluator(Game<S, M, P> game, int maxDepth,
+            List<InetSocketAddress> endpoints) throws EvaluatorCreationException {
+        this(game, maxDepth, endpoints, DEFAULT_STALL_MILLIS);
+    }
+
+    /**
+     * Creates the evaluator and connects to the servers. Servers that can't
+     * be reached are left out.
+     *
+     * @param game game being evaluated
+     * @param maxDepth search depth
+     * @param endpoints addresses of the servers
+     * @param stallMillis time after which an unanswered request is sent to
+     *        another server
+     * @throws EvaluatorCreationException if none of the servers can be
+     *         reached
+     */
+    public ShardedRemoteEvaluator(Game<S, M, P> game, int maxDepth,
+            List<InetSocketAddress> endpoints, long stallMillis)
+            throws EvaluatorCreationException {
+        this.game = game;
+        this.maxDepth = maxDepth;
+        this.stallMillis = stallMillis;
+
+        for (InetSocketAddress endpoint : endpoints) {
+            try {
+                shards.add(new Shard<>(endpoint, new RemoteEvaluator<>(game, maxDepth,
+                        endpoint.getHostString(), endpoint.getPort())));
+            } catch (EvaluatorCreationException ex) {
+                Logger.getLogger(ShardedRemoteEvaluator.class.getName()).log(Level.WARNING,
+                        "Evaluation server {0} can''t be reached", endpoint);
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new EvaluatorCreationException("None of the evaluation servers can be reached.");
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ShardedRemoteEvaluator timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        for (Shard<S, M, P> shard : shards) {
+            shard.evaluator.setMaxDepth(maxDepth);
+        }
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of servers still in use.
+     *
+     * @return number of connected servers
+     */
+    public int getConnectedCnt() {
+        int cnt = 0;
+        for (Shard<S, M, P> shard : shards) {
+            if (!shard.down) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    @Override
+    public double evaluate(M move) throws DuringEvaluationException {
+        // in a symmetric position the mirrored move may be evaluated already
+        boolean symmetric = game.isSymmetricPosition();
+        long rootKey = game.getPositionKey();
+        int moveIndex = game.getMoveIndex(move);
+        if (symmetric) {
+            double cached = rootCache.get(rootKey, maxDepth,
+                    game.getMirroredMoveIndex(moveIndex));
+            if (!Double.isNaN(cached)) {
+                return cached;
+            }
+        }
+        double eval = await(submit(move, 0));
+        if (symmetric) {
+            rootCache.put(rootKey, maxDepth, moveIndex, eval);
+        }
+        return eval;
+    }
+
+    @Override
+    public double evaluateWithin(M move, long timeBudgetMillis) throws DuringEvaluationException {
+        return await(submit(move, timeBudgetMillis));
+    }
+
+    /**
+     * Sends all the root moves at once, mirrored moves of a symmetric
+     * position left out, and waits for all of them. The principal variation
+     * consists of the best move alone.
+     */
+    @Override
+    public RootAnalysis<M> analyze() throws DuringEvaluationException {
+        List<M> moves = game.getLegalMoves();
+        boolean symmetric = game.isSymmetricPosition();
+        List<CompletableFuture<Double>> requested = new ArrayList<>(moves.size());
+        for (M move : moves) {
+            int moveIndex = game.getMoveIndex(move);
+            requested.add((!symmetric || game.getMirroredMoveIndex(moveIndex) >= moveIndex)
+                    ? submit(move, 0) : null);
+        }
+        double[] evalByIndex = new double[game.getMoveIndexCnt()];
+        for (int i = 0; i < moves.size(); i++) {
+            if (requested.get(i) != null) {
+                int moveIndex = game.getMoveIndex(moves.get(i));
+                evalByIndex[moveIndex] = await(requested.get(i));
+                if (symmetric) {
+                    evalByIndex[game.getMirroredMoveIndex(moveIndex)] = evalByIndex[moveIndex];
+                }
+            }
+        }
+        double[] scores = new double[moves.size()];
+        boolean[] exact = new boolean[moves.size()];
+        int bestIndex = 0;
+        for (int i = 0; i < moves.size(); i++) {
+            scores[i] = evalByIndex[game.getMoveIndex(moves.get(i))];
+            exact[i] = true;
+            if (scores[i] > scores[bestIndex]) {
+                bestIndex = i;
+            }
+        }
+        return new RootAnalysis<>(moves, scores, exact, bestIndex,
+                Collections.singletonList(moves.get(bestIndex)));
+    }
+
+    private static double await(CompletableFuture<Double> result) throws DuringEvaluationException {
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof DuringEvaluationException) {
+                throw (DuringEvaluationException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Starts the evaluation of the move on the least loaded server.
+     */
+    private CompletableFuture<Double> submit(M move, long timeBudgetMillis) {
+        Job job = new Job(move, timeBudgetMillis);
+        attempt(job);
+        return job.result;
+    }
+
+    /**
+     * Sends the job to the least loaded server that hasn't seen it yet. If
+     * there's none, the job fails unless an earlier attempt is still running.
+     */
+    private void attempt(Job job) {
+        Shard<S, M, P> shard;
+        synchronized (job) {
+            if (job.result.isDone()) {
+                return;
+            }
+            shard = pickShard(job.tried);
+            if (shard == null) {
+                if (job.inFlight == 0) {
+                    job.result.completeExceptionally(new DuringEvaluationException(
+                            "No evaluation server could evaluate the move."));
+                }
+                return;
+            }
+            job.tried.add(shard);
+            job.inFlight++;
+        }
+
+        shard.load.incrementAndGet();
+        CompletableFuture<Double> eval = (job.timeBudgetMillis > 0)
+                ? shard.evaluator.evaluateWithinAsync(job.move, job.timeBudgetMillis)
+                : shard.evaluator.evaluateAsync(job.move);
+        eval.whenComplete((result, ex) -> {
+            shard.load.decrementAndGet();
+            synchronized (job) {
+                job.inFlight--;
+            }
+            if (ex == null) {
+                job.result.complete(result);
+                return;
+            }
+            if (!shard.evaluator.isConnected()) {
+                shard.down = true;
+            }
+            Logger.getLogger(ShardedRemoteEvaluator.class.getName()).log(Level.WARNING,
+                    "Evaluation server {0} failed, trying another one", shard.endpoint);
+            attempt(job);
+        });
+
+        if (!eval.isDone() && stallMillis > 0) {
+            // answers to a stalled request are still accepted if they come
+            // before the ones from the other servers
+            timer.schedule(() -> {
+                if (!eval.isDone()) {
+                    Logger.getLogger(ShardedRemoteEvaluator.class.getName()).log(Level.WARNING,
+                            "Evaluation server {0} stalls, trying another one", shard.endpoint);
+                    attempt(job);
+                }
+            }, stallMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Shard<S, M, P> pickShard(Set<Shard<S, M, P>> excluded) {
+        int start = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        Shard<S, M, P> best = null;
+        for (int i = 0; i < shards.size(); i++) {
+            Shard<S, M, P> shard = shards.get((start + i) % shards.size());
+            if (shard.down || excluded.contains(shard)) {
+                continue;
+            }
+            if (best == null || shard.load.get() < best.load.get()) {
+                best = shard;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void close() throws EvaluatorCloseException {
+        timer.shutdownNow();
+        EvaluatorCloseException failure = null;
+        for (Shard<S, M, P> shard : shards) {
+            try {
+                shard.evaluator.close();
+            } catch (EvaluatorCloseException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Evaluates the move for the given player. The servers score moves for
+     * the player to move, so the score is negated for the other one.
+     *
+     * @throws IllegalStateException if none of the servers can evaluate the
+     *         move
+     */
+    @Override
+    public double evaluate(M move, P player) {
+        double eval;
+        try {
+            eval = evaluate(move);
+        } catch (DuringEvaluationException ex) {
+            // the signature leaves no room for the checked exception
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+        return player.equals(game.getCurrPlayer()) ? eval : -eval;
+    }
+
+    /**
+     * Connection to one of the servers.
+     */
+    private static class Shard<S, M, P> {
+
+        private final InetSocketAddress endpoint;
+        private final RemoteEvaluator<S, M, P> evaluator;
+        // requests sent and not yet answered
+        private final AtomicInteger load = new AtomicInteger();
+        private volatile boolean down;
+
+        Shard(InetSocketAddress endpoint, RemoteEvaluator<S, M, P> evaluator) {
+            this.endpoint = endpoint;
+            this.evaluator = evaluator;
+        }
+    }
+
+    /**
+     * Evaluation of one move, possibly attempted on several servers.
+     */
+    private class Job {
+
+        private final M move;
+        private final long timeBudgetMillis;
+        private final CompletableFuture<Double> result = new CompletableFuture<>();
+        // guarded by the job
+        private final Set<Shard<S, M, P>> tried = new HashSet<>();
+        private int inFlight;
+
+        Job(M move, long timeBudgetMillis) {
+            this.move = move;
+            this.timeBudgetMillis = timeBudgetMillis;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transposition table that can be shared by any number of searching threads
+ * without locking. <br>
+ * Meant for {@link AlphaBetaEvaluator}, scores are integers.
+ *
+ * <p>
+ * Every entry is two 64-bit words: the data (score, depth, bound, best move
+ * and generation packed together) and the position key XORed with the data.
+ * Words are read and written independently, so a reader may see halves of two
+ * different stores. Such an entry doesn't pass the check
+ * <code>(keyWord ^ data) == key</code> and is treated as a miss, the same as
+ * an entry of another position. Concurrent stores to the same slot simply
+ * race, the table never blocks.
+ * </p>
+ *
+ * <p>
+ * Lookups return the data word, which is decoded with the static getters, so
+ * a hit can't be overwritten between reading its fields.
+ * </p>
+ *
+ * @author marko
+ */
+public class SharedTranspositionTable {
+
+    /** returned by {@link #probe(long)} if the position isn't in the table */
+    public static final long NO_DATA = 0;
+
+    // data layout: score (32), depth (16), bound (2), best move + 1 (8), generation (6)
+    private static final int DEPTH_SHIFT = 32;
+    private static final int BOUND_SHIFT = 48;
+    private static final int MOVE_SHIFT = 50;
+    private static final int GENERATION_SHIFT = 58;
+    private static final int GENERATION_MASK = 0x3F;
+
+    // two words per entry
+    static final int ENTRY_SIZE = 16;
+    private static final int MAX_ENTRIES = 1 << 26;
+
+    private final AtomicLongArray entries;
+    private final int indexMask;
+    private final TranspositionTable.ReplacementPolicy policy;
+
+    private volatile int generation;
+
+    private final LongAdder probeCnt = new LongAdder();
+    private final LongAdder hitCnt = new LongAdder();
+
+    /**
+     * Creates a table that takes at most the given number of bytes. <br>
+     * Number of entries is rounded down to a power of two.
+     *
+     * @param maxBytes memory budget of the table
+     * @param policy replacement policy used when storing entries
+     */
+    public SharedTranspositionTable(long maxBytes, TranspositionTable.ReplacementPolicy policy) {
+        long entryCnt = Math.min(maxBytes / ENTRY_SIZE, MAX_ENTRIES);
+        if (entryCnt < 1) {
+            throw new IllegalArgumentException("Memory budget too small for a single entry.");
+        }
+        int capacity = Integer.highestOneBit((int) entryCnt);
+
+        this.entries = new AtomicLongArray(2 * capacity);
+        this.indexMask = capacity - 1;
+        this.policy = policy;
+    }
+
+    public int getCapacity() {
+        return indexMask + 1;
+    }
+
+    /**
+     * Marks the start of a new search. Should be called once per search, not
+     * by every thread taking part in it.
+     */
+    public void newSearch() {
+        generation = (generation + 1) & GENERATION_MASK;
+    }
+
+    /**
+     * Looks the position up.
+     *
+     * @param key position key
+     * @return data word of the entry, {@link #NO_DATA} if the position isn't
+     *         in the table
+     */
+    public long probe(long key) {
+        probeCnt.increment();
+        int index = 2 * index(key);
+        long data = entries.get(index + 1);
+        if (data == NO_DATA || (entries.get(index) ^ data) != key) {
+            return NO_DATA;
+        }
+        hitCnt.increment();
+        return data;
+    }
+
+    public static int getScore(long data) {
+        return (int) data;
+    }
+
+    public static int getDepth(long data) {
+        return (int) ((data >>> DEPTH_SHIFT) & 0xFFFF);
+    }
+
+    public static byte getBound(long data) {
+        return (byte) ((data >>> BOUND_SHIFT) & 0x3);
+    }
+
+    /**
+     * Returns the index of the best move found in the stored position.
+     *
+     * @param data data word returned by {@link #probe(long)}
+     * @return move index, {@link TranspositionTable#NO_MOVE} if it isn't known
+     */
+    public static int getBestMove(long data) {
+        return (int) ((data >>> MOVE_SHIFT) & 0xFF) - 1;
+    }
+
+    /**
+     * Stores the entry, subject to the replacement policy.
+     *
+     * @param key position key
+     * @param score score of the position
+     * @param depth remaining depth the score was computed with
+     * @param bound one of the <code>BOUND_*</code> constants of
+     *        {@link TranspositionTable}, except <code>BOUND_NONE</code>
+     * @param bestMove index of the best move, {@link TranspositionTable#NO_MOVE}
+     *        if unknown
+     */
+    public void store(long key, int score, int depth, byte bound, int bestMove) {
+        int index = 2 * index(key);
+        int currGeneration = generation;
+        if (policy == TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED) {
+            long old = entries.get(index + 1);
+            if (old != NO_DATA
+                    && (entries.get(index) ^ old) != key
+                    && ((old >>> GENERATION_SHIFT) & GENERATION_MASK) == currGeneration
+                    && getDepth(old) > depth) {
+                return;
+            }
+        }
+        long data = (score & 0xFFFFFFFFL)
+                | ((long) (depth & 0xFFFF) << DEPTH_SHIFT)
+                | ((long) (bound & 0x3) << BOUND_SHIFT)
+                | ((long) ((bestMove + 1) & 0xFF) << MOVE_SHIFT)
+                | ((long) currGeneration << GENERATION_SHIFT);
+        entries.lazySet(index + 1, data);
+        entries.lazySet(index, key ^ data);
+    }
+
+    /**
+     * Follows the best moves stored in the table, see
+     * {@link TranspositionTable#getPrincipalVariation(Game, int, int)}.
+     *
+     * @param game game being searched
+     * @param firstMove index of the first move of the line
+     * @param maxLength maximal number of moves in the line
+     * @return moves of the line
+     */
+    public <M> List<M> getPrincipalVariation(Game<?, M, ?> game, int firstMove,
+            int maxLength) {
+        return TranspositionTable.followBestMoves(game, firstMove, maxLength, key -> {
+            int index = 2 * index(key);
+            long data = entries.get(index + 1);
+            if (data == NO_DATA || (entries.get(index) ^ data) != key) {
+                return TranspositionTable.NO_MOVE;
+            }
+            return getBestMove(data);
+        });
+    }
+
+    /**
+     * Empties the table and resets the statistics. Must not be called while
+     * a search is running.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, 0);
+        }
+        probeCnt.reset();
+        hitCnt.reset();
+    }
+
+    public long getProbeCnt() {
+        return probeCnt.sum();
+    }
+
+    public long getHitCnt() {
+        return hitCnt.sum();
+    }
+
+    /**
+     * Returns the share of the lookups that found their position.
+     *
+     * @return hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        long probes = getProbeCnt();
+        return (probes == 0) ? 0 : getHitCnt() / (double) probes;
+    }
+
+    private int index(long key) {
+        // high bits are mixed in so keys differing only there spread as well
+        return (int) (key ^ (key >>> 32)) & indexMask;
+    }
+
+}
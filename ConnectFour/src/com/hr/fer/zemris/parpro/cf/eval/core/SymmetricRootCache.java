@@ -0,0 +1,53 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import java.util.Arrays;
+
+/**
+ * Remembers evaluations of the root moves made from a symmetric position.
+ * <br>
+ * In such a position a move and its mirror image have the same value, so
+ * once one of them is evaluated the other one comes for free and only half
+ * of the root moves have to be searched.
+ *
+ * <p>
+ * Evaluations are kept from the point of view of the player making the root
+ * move and only for the last root position and depth seen.
+ * </p>
+ *
+ * @author marko
+ */
+class SymmetricRootCache {
+
+    private long rootKey;
+    private int depth = -1;
+    private double[] evals = new double[0];
+
+    /**
+     * Returns the evaluation of the move, if it is known.
+     *
+     * @param rootKey key of the root position
+     * @param depth depth of the search
+     * @param moveIndex index of the root move
+     * @return evaluation of the move, NaN if it is unknown
+     */
+    double get(long rootKey, int depth, int moveIndex) {
+        if (rootKey != this.rootKey || depth != this.depth || moveIndex >= evals.length) {
+            return Double.NaN;
+        }
+        return evals[moveIndex];
+    }
+
+    void put(long rootKey, int depth, int moveIndex, double eval) {
+        if (rootKey != this.rootKey || depth != this.depth) {
+            this.rootKey = rootKey;
+            this.depth = depth;
+            Arrays.fill(evals, Double.NaN);
+        }
+        if (moveIndex >= evals.length) {
+            int oldLength = evals.length;
+            evals = Arrays.copyOf(evals, moveIndex + 1);
+            Arrays.fill(evals, oldLength, evals.length, Double.NaN);
+        }
+        evals[moveIndex] = eval;
+    }
+}
@@ -0,0 +1,287 @@
+package com.hr.fer.zemris.parpro.cf.eval.core;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Fixed-size transposition table kept outside of the Java heap. <br>
+ * Entries live in a direct {@link ByteBuffer} and are addressed by the low
+ * bits of the position key, so the table never allocates after construction
+ * and its memory footprint is known up front.
+ *
+ * <p>
+ * Every entry holds the full 64-bit key (to tell apart positions sharing a
+ * slot), the score, remaining search depth, bound type and the generation of
+ * the search that stored it. Lookups return a slot index which is then used
+ * to read the individual fields, so probing doesn't create any objects.
+ * </p>
+ *
+ * <p>
+ * The table isn't thread-safe, every searching thread needs its own.
+ * </p>
+ *
+ * @author marko
+ */
+public class TranspositionTable {
+
+    /**
+     * What happens when a new entry maps to an occupied slot.
+     */
+    public enum ReplacementPolicy {
+        /** new entry always overwrites the old one */
+        ALWAYS,
+        /** old entry survives if it is from the current search and deeper */
+        DEPTH_PREFERRED
+    }
+
+    /** slot is empty */
+    public static final byte BOUND_NONE = 0;
+    /** score is the exact value of the position */
+    public static final byte BOUND_EXACT = 1;
+    /** real value is at least the score */
+    public static final byte BOUND_LOWER = 2;
+    /** real value is at most the score */
+    public static final byte BOUND_UPPER = 3;
+
+    /** best move of the entry isn't known */
+    public static final int NO_MOVE = -1;
+
+    // entry layout: key (8), score (8), depth (2), bound (1), generation (1),
+    // best move (1), padding (3)
+    static final int ENTRY_SIZE = 24;
+    private static final int KEY_OFFSET = 0;
+    private static final int SCORE_OFFSET = 8;
+    private static final int DEPTH_OFFSET = 16;
+    private static final int BOUND_OFFSET = 18;
+    private static final int GENERATION_OFFSET = 19;
+    private static final int MOVE_OFFSET = 20;
+
+    private static final int MAX_ENTRIES = 1 << 26;
+
+    private final ByteBuffer entries;
+    private final int indexMask;
+    private final ReplacementPolicy policy;
+
+    private byte generation;
+
+    private long probeCnt;
+    private long hitCnt;
+
+    /**
+     * Creates a table that takes at most the given number of bytes. <br>
+     * Number of entries is rounded down to a power of two.
+     *
+     * @param maxBytes memory budget of the table
+     * @param policy replacement policy used when storing entries
+     */
+    public TranspositionTable(long maxBytes, ReplacementPolicy policy) {
+        long entryCnt = Math.min(maxBytes / ENTRY_SIZE, MAX_ENTRIES);
+        if (entryCnt < 1) {
+            throw new IllegalArgumentException("Memory budget too small for a single entry.");
+        }
+        int capacity = Integer.highestOneBit((int) entryCnt);
+
+        this.entries = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE)
+                .order(ByteOrder.nativeOrder());
+        this.indexMask = capacity - 1;
+        this.policy = policy;
+    }
+
+    public int getCapacity() {
+        return indexMask + 1;
+    }
+
+    public ReplacementPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Marks the start of a new search. <br>
+     * Entries stored by earlier searches stay usable but are the first to go
+     * under {@link ReplacementPolicy#DEPTH_PREFERRED}.
+     */
+    public void newSearch() {
+        generation++;
+    }
+
+    /**
+     * Looks the position up.
+     *
+     * @param key position key
+     * @return slot index of the entry, -1 if the position isn't in the table
+     */
+    public int find(long key) {
+        probeCnt++;
+        int offset = offset(key);
+        if (entries.get(offset + BOUND_OFFSET) == BOUND_NONE
+                || entries.getLong(offset + KEY_OFFSET) != key) {
+            return -1;
+        }
+        hitCnt++;
+        return offset;
+    }
+
+    public double getScore(int slot) {
+        return entries.getDouble(slot + SCORE_OFFSET);
+    }
+
+    public int getDepth(int slot) {
+        return entries.getShort(slot + DEPTH_OFFSET);
+    }
+
+    public byte getBound(int slot) {
+        return entries.get(slot + BOUND_OFFSET);
+    }
+
+    /**
+     * Returns the index of the best move found in the stored position.
+     *
+     * @param slot slot index returned by {@link #find(long)}
+     * @return move index, {@link #NO_MOVE} if it isn't known
+     */
+    public int getBestMove(int slot) {
+        return entries.get(slot + MOVE_OFFSET);
+    }
+
+    /**
+     * Stores the entry, subject to the replacement policy.
+     *
+     * @param key position key
+     * @param score score of the position
+     * @param depth remaining depth the score was computed with
+     * @param bound one of the <code>BOUND_*</code> constants
+     */
+    public void store(long key, double score, int depth, byte bound) {
+        store(key, score, depth, bound, NO_MOVE);
+    }
+
+    /**
+     * Stores the entry together with the best move, subject to the
+     * replacement policy.
+     *
+     * @param key position key
+     * @param score score of the position
+     * @param depth remaining depth the score was computed with
+     * @param bound one of the <code>BOUND_*</code> constants
+     * @param bestMove index of the best move, {@link #NO_MOVE} if unknown
+     */
+    public void store(long key, double score, int depth, byte bound, int bestMove) {
+        int offset = offset(key);
+        if (policy == ReplacementPolicy.DEPTH_PREFERRED
+                && entries.get(offset + BOUND_OFFSET) != BOUND_NONE
+                && entries.getLong(offset + KEY_OFFSET) != key
+                && entries.get(offset + GENERATION_OFFSET) == generation
+                && entries.getShort(offset + DEPTH_OFFSET) > depth) {
+            return;
+        }
+        entries.putLong(offset + KEY_OFFSET, key);
+        entries.putDouble(offset + SCORE_OFFSET, score);
+        entries.putShort(offset + DEPTH_OFFSET, (short) depth);
+        entries.put(offset + BOUND_OFFSET, bound);
+        entries.put(offset + GENERATION_OFFSET, generation);
+        entries.put(offset + MOVE_OFFSET, (byte) bestMove);
+    }
+
+    /**
+     * Follows the best moves stored in the table, starting with the given
+     * move. The line ends at a terminal state, at a position missing from the
+     * table or after <code>maxLength</code> moves. State of the game is left
+     * unchanged. <br>
+     * Entries are expected to be keyed by
+     * {@link Game#getCanonicalPositionKey()} with the best move stored for the
+     * canonical position, see {@link #toCanonicalMove(Game, int)}.
+     *
+     * @param game game being searched
+     * @param firstMove index of the first move of the line
+     * @param maxLength maximal number of moves in the line
+     * @return moves of the line
+     */
+    public <M> List<M> getPrincipalVariation(Game<?, M, ?> game, int firstMove,
+            int maxLength) {
+        return followBestMoves(game, firstMove, maxLength, key -> {
+            int offset = offset(key);
+            if (entries.get(offset + BOUND_OFFSET) == BOUND_NONE
+                    || entries.getLong(offset + KEY_OFFSET) != key) {
+                return NO_MOVE;
+            }
+            return entries.get(offset + MOVE_OFFSET);
+        });
+    }
+
+    /**
+     * Walks the line of best moves, shared by the table implementations.
+     *
+     * @param bestMoveOf maps a canonical position key to the stored best
+     *        move, {@link #NO_MOVE} if there is none
+     */
+    static <M> List<M> followBestMoves(Game<?, M, ?> game, int firstMove, int maxLength,
+            LongToIntFunction bestMoveOf) {
+        List<M> line = new ArrayList<>();
+        int moveIndex = firstMove;
+        while (true) {
+            line.add(game.getMove(moveIndex));
+            game.makeMove(moveIndex);
+            if (line.size() >= maxLength || game.isOver()) {
+                break;
+            }
+            moveIndex = fromCanonicalMove(game, bestMoveOf.applyAsInt(game.getCanonicalPositionKey()));
+            if (moveIndex == NO_MOVE || (game.getLegalMoveMask() & (1L << moveIndex)) == 0) {
+                break;
+            }
+        }
+        for (int i = 0; i < line.size(); i++) {
+            game.unmakeMove();
+        }
+        return line;
+    }
+
+    /**
+     * Maps a move made in the current position to the corresponding move in
+     * the canonical position, which is the one the table entry describes.
+     *
+     * @param game game being searched
+     * @param moveIndex index of the move, may be {@link #NO_MOVE}
+     * @return index of the move in the canonical position
+     */
+    public static int toCanonicalMove(Game<?, ?, ?> game, int moveIndex) {
+        if (moveIndex == NO_MOVE || game.getPositionKey() == game.getCanonicalPositionKey()) {
+            return moveIndex;
+        }
+        return game.getMirroredMoveIndex(moveIndex);
+    }
+
+    private static int fromCanonicalMove(Game<?, ?, ?> game, int moveIndex) {
+        // mirroring is its own inverse
+        return toCanonicalMove(game, moveIndex);
+    }
+
+    /**
+     * Empties the table and resets the statistics.
+     */
+    public void clear() {
+        for (int offset = 0; offset < entries.capacity(); offset += ENTRY_SIZE) {
+            entries.put(offset + BOUND_OFFSET, BOUND_NONE);
+        }
+        probeCnt = 0;
+        hitCnt = 0;
+    }
+
+    public long getProbeCnt() {
+        return probeCnt;
+    }
+
+    public long getHitCnt() {
+        return hitCnt;
+    }
+
+    private int offset(long key) {
+        // high bits are mixed in so keys differing only there spread as well
+        int index = (int) (key ^ (key >>> 32)) & indexMask;
+        return index * ENTRY_SIZE;
+    }
+
+}
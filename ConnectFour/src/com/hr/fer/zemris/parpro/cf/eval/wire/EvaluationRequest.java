@@ -0,0 +1,65 @@
+package com.hr.fer.zemris.parpro.cf.eval.wire;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.concretegames.Board;
+
+/**
+ * Request received by an evaluation server: evaluate the given moves from the
+ * position the game is in.
+ *
+ * @author marko
+ */
+public class EvaluationRequest {
+
+    private final int id;
+    private final Game<Board, Integer, String> game;
+    private final int maxDepth;
+    private final long timeBudgetMillis;
+    private final int[] moveIndices;
+
+    /**
+     * Creates the request.
+     *
+     * @param id id chosen by the client, echoed in the response
+     * @param game game in the position to be evaluated
+     * @param maxDepth search depth
+     * @param timeBudgetMillis time budget per move, 0 for a fixed depth search
+     * @param moveIndices indices of the moves to be evaluated
+     */
+    public EvaluationRequest(int id, Game<Board, Integer, String> game, int maxDepth,
+            long timeBudgetMillis, int[] moveIndices) {
+        this.id = id;
+        this.game = game;
+        this.maxDepth = maxDepth;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.moveIndices = moveIndices;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Game<Board, Integer, String> getGame() {
+        return game;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+
+    public int getMoveCnt() {
+        return moveIndices.length;
+    }
+
+    public int getMoveIndex(int i) {
+        return moveIndices[i];
+    }
+
+    public Integer getMove(int i) {
+        return game.getMove(moveIndices[i]);
+    }
+}
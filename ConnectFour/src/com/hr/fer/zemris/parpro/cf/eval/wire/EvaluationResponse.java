@@ -0,0 +1,41 @@
+package com.hr.fer.zemris.parpro.cf.eval.wire;
+
+/**
+ * Response received from an evaluation server.
+ *
+ * @author marko
+ */
+public class EvaluationResponse {
+
+    private final int id;
+    private final double[] evals;
+
+    /**
+     * Creates the response.
+     *
+     * @param id id of the request being answered
+     * @param evals evaluations of the requested moves, null if the server
+     *        failed to evaluate them
+     */
+    public EvaluationResponse(int id, double[] evals) {
+        this.id = id;
+        this.evals = evals;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isError() {
+        return evals == null;
+    }
+
+    /**
+     * Returns the evaluations, in the order the moves were requested.
+     *
+     * @return evaluations, null if the server reported an error
+     */
+    public double[] getEvals() {
+        return evals;
+    }
+}
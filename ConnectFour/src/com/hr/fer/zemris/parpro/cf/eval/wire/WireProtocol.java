@@ -0,0 +1,336 @@
+package com.hr.fer.zemris.parpro.cf.eval.wire;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.concretegames.Board;
+import com.hr.fer.zemris.parpro.cf.concretegames.ConnectFour;
+import com.hr.fer.zemris.parpro.cf.concretegames.ConnectFourBuilder;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Binary protocol spoken between {@link com.hr.fer.zemris.parpro.cf.eval.core.RemoteEvaluator}
+ * and the evaluation servers.
+ *
+ * <p>
+ * Every message is a frame: its length (int, not counting the length
+ * itself) followed by the protocol version (byte) and the message type or
+ * status (byte). All numbers are big-endian.
+ * </p>
+ *
+ * <pre>
+ * evaluate request: request id (int), rowCnt (byte), colCnt (byte), history length (byte),
+ *                   history (byte per move), max depth (short),
+ *                   time budget in ms (long), move count (byte),
+ *                   moves to evaluate (byte per move)
+ * close request:    nothing
+ * response:         request id (int), evaluation count (byte), evaluations (double each),
+ *                   none if the status is an error
+ * </pre>
+ *
+ * <p>
+ * The position travels as the list of moves made from the start of the game,
+ * so a request for a Connect Four position is well under a hundred bytes and
+ * the server replays it without any Java deserialization. Replayed moves are
+ * checked, a malformed request can't produce an illegal position.
+ * </p>
+ *
+ * <p>
+ * Clients may send further requests before the earlier ones are answered.
+ * Servers may answer them in any order, the id chosen by the client and
+ * echoed in the response tells which request a response belongs to.
+ * </p>
+ *
+ * @author marko
+ */
+public final class WireProtocol {
+
+    public static final byte VERSION = 2;
+
+    public static final byte TYPE_EVALUATE = 1;
+    public static final byte TYPE_CLOSE = 2;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    /** no valid frame is larger, anything bigger is rejected unread */
+    public static final int MAX_FRAME_SIZE = 1024;
+
+    /**
+     * First byte of a Java serialization stream. Binary frames start with a
+     * small length, so their first byte is always 0 and servers can tell the
+     * two protocols apart.
+     */
+    public static final byte OBJECT_STREAM_MAGIC = (byte) 0xAC;
+
+    private static final int LENGTH_SIZE = Integer.BYTES;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Allocates a buffer large enough for any frame.
+     *
+     * @return new buffer
+     */
+    public static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocateDirect(LENGTH_SIZE + MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Writes the evaluate request into the buffer, which is then ready to be
+     * sent.
+     *
+     * @param buffer buffer the frame is written to
+     * @param id id of the request, echoed in the response
+     * @param game game in the position to be evaluated, its state has to be a
+     *        {@link Board}
+     * @param maxDepth search depth
+     * @param timeBudgetMillis time budget per move, 0 for a fixed depth search
+     * @param moveIndices indices of the moves to be evaluated
+     * @param moveCnt number of moves to be evaluated
+     */
+    public static void writeEvaluateRequest(ByteBuffer buffer, int id, Game<?, ?, ?> game,
+            int maxDepth, long timeBudgetMillis, int[] moveIndices, int moveCnt) {
+        if (!(game.getCurrState() instanceof Board)) {
+            throw new IllegalArgumentException("Binary protocol only carries Connect Four positions.");
+        }
+        Board board = (Board) game.getCurrState();
+        beginFrame(buffer, TYPE_EVALUATE);
+        buffer.putInt(id);
+        buffer.put((byte) board.getRowCnt());
+        buffer.put((byte) board.getColCnt());
+        buffer.put((byte) game.getMovesCnt());
+        for (int ply = 0; ply < game.getMovesCnt(); ply++) {
+            buffer.put((byte) game.getMoveIndexAt(ply));
+        }
+        buffer.putShort((short) maxDepth);
+        buffer.putLong(timeBudgetMillis);
+        buffer.put((byte) moveCnt);
+        for (int i = 0; i < moveCnt; i++) {
+            buffer.put((byte) moveIndices[i]);
+        }
+        endFrame(buffer);
+    }
+
+    /**
+     * Writes the request telling the server there's no more data.
+     *
+     * @param buffer buffer the frame is written to
+     */
+    public static void writeCloseRequest(ByteBuffer buffer) {
+        beginFrame(buffer, TYPE_CLOSE);
+        endFrame(buffer);
+    }
+
+    /**
+     * Decodes a request frame.
+     *
+     * @param frame frame as returned by {@link #readFrame(ReadableByteChannel, ByteBuffer)}
+     * @return the request, null for a close request
+     * @throws ProtocolException if the frame is malformed or the position in
+     *         it is invalid
+     */
+    public static EvaluationRequest readRequest(ByteBuffer frame) throws ProtocolException {
+        try {
+            byte type = frame.get();
+            if (type == TYPE_CLOSE) {
+                return null;
+            }
+            if (type != TYPE_EVALUATE) {
+                throw new ProtocolException("Unknown request type " + type);
+            }
+            int id = frame.getInt();
+            int rowCnt = frame.get() & 0xFF;
+            int colCnt = frame.get() & 0xFF;
+            ConnectFour game = new ConnectFourBuilder()
+                    .setRowCnt(rowCnt).setColCnt(colCnt).createConnectFour();
+            int historyCnt = frame.get() & 0xFF;
+            for (int ply = 0; ply < historyCnt; ply++) {
+                game.performMove(game.getMove(frame.get() & 0xFF));
+            }
+            int maxDepth = frame.getShort();
+            long timeBudgetMillis = frame.getLong();
+            int[] moveIndices = new int[frame.get() & 0xFF];
+            if (moveIndices.length > 0 && game.isOver()) {
+                throw new ProtocolException("No moves can be made in a terminal position.");
+            }
+            for (int i = 0; i < moveIndices.length; i++) {
+                moveIndices[i] = frame.get() & 0xFF;
+                if (!game.isLegalMove(game.getMove(moveIndices[i]))) {
+                    throw new ProtocolException("Illegal move " + moveIndices[i]);
+                }
+            }
+            if (maxDepth < 0 || timeBudgetMillis < 0) {
+                throw new ProtocolException("Negative depth or time budget.");
+            }
+            return new EvaluationRequest(id, game, maxDepth, timeBudgetMillis, moveIndices);
+        } catch (BufferUnderflowException ex) {
+            throw new ProtocolException("Request frame is too short.");
+        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            // board that doesn't fit or a move that can't be made
+            throw new ProtocolException("Invalid position: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the successful response into the buffer.
+     *
+     * @param buffer buffer the frame is written to
+     * @param id id of the request
+     * @param evals evaluations of the requested moves, in the requested order
+     */
+    public static void writeResponse(ByteBuffer buffer, int id, double[] evals) {
+        beginFrame(buffer, STATUS_OK);
+        buffer.putInt(id);
+        buffer.put((byte) evals.length);
+        for (double eval : evals) {
+            buffer.putDouble(eval);
+        }
+        endFrame(buffer);
+    }
+
+    /**
+     * Writes the response telling the client the evaluation failed.
+     *
+     * @param buffer buffer the frame is written to
+     * @param id id of the request
+     */
+    public static void writeErrorResponse(ByteBuffer buffer, int id) {
+        beginFrame(buffer, STATUS_ERROR);
+        buffer.putInt(id);
+        endFrame(buffer);
+    }
+
+    /**
+     * Decodes a response frame.
+     *
+     * @param frame frame as returned by {@link #readFrame(ReadableByteChannel, ByteBuffer)}
+     * @return the response
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static EvaluationResponse readResponse(ByteBuffer frame) throws ProtocolException {
+        try {
+            byte status = frame.get();
+            int id = frame.getInt();
+            if (status != STATUS_OK) {
+                return new EvaluationResponse(id, null);
+            }
+            double[] evals = new double[frame.get() & 0xFF];
+            for (int i = 0; i < evals.length; i++) {
+                evals[i] = frame.getDouble();
+            }
+            return new EvaluationResponse(id, evals);
+        } catch (BufferUnderflowException ex) {
+            throw new ProtocolException("Response frame is too short.");
+        }
+    }
+
+    /**
+     * Sends the frame prepared in the buffer.
+     *
+     * @param channel channel in blocking mode
+     * @param buffer buffer holding the frame
+     * @throws IOException if writing fails
+     */
+    public static void writeFrame(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Receives a frame into the buffer. The returned buffer is positioned
+     * right after the version, at the message type or status.
+     *
+     * @param channel channel in blocking mode
+     * @param buffer buffer of at least {@link #MAX_FRAME_SIZE} plus four bytes
+     * @return the buffer, null if the other side closed the connection
+     *         between frames
+     * @throws IOException if reading fails or the frame is malformed
+     */
+    public static ByteBuffer readFrame(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(LENGTH_SIZE);
+        if (!readFully(channel, buffer, true)) {
+            return null;
+        }
+        int length = buffer.getInt(0);
+        if (length < 2 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        buffer.limit(LENGTH_SIZE + length);
+        readFully(channel, buffer, false);
+        buffer.position(LENGTH_SIZE);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        return buffer;
+    }
+
+    /**
+     * Takes the next frame out of the bytes received so far, for readers that
+     * can't wait for the rest of a frame. The returned frame is positioned
+     * right after the version, at the message type or status, and shares its
+     * content with the buffer, so it has to be decoded before the buffer is
+     * compacted.
+     *
+     * @param received received bytes, ready to be read
+     * @return the frame, null if it hasn't been received completely yet, in
+     *         which case the buffer isn't changed
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static ByteBuffer takeFrame(ByteBuffer received) throws ProtocolException {
+        if (received.remaining() < LENGTH_SIZE) {
+            return null;
+        }
+        int length = received.getInt(received.position());
+        if (length < 2 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        if (received.remaining() < LENGTH_SIZE + length) {
+            return null;
+        }
+        ByteBuffer frame = received.slice();
+        frame.limit(LENGTH_SIZE + length);
+        frame.position(LENGTH_SIZE);
+        received.position(received.position() + LENGTH_SIZE + length);
+        byte version = frame.get();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        return frame;
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer,
+            boolean eofAllowed) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofAllowed && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame.");
+            }
+        }
+        return true;
+    }
+
+    private static void beginFrame(ByteBuffer buffer, byte typeOrStatus) {
+        buffer.clear();
+        // length is filled in once the frame is complete
+        buffer.putInt(0);
+        buffer.put(VERSION);
+        buffer.put(typeOrStatus);
+    }
+
+    private static void endFrame(ByteBuffer buffer) {
+        buffer.putInt(0, buffer.position() - LENGTH_SIZE);
+        buffer.flip();
+    }
+}
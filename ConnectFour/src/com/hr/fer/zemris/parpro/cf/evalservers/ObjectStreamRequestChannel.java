@@ -0,0 +1,84 @@
+package com.hr.fer.zemris.parpro.cf.evalservers;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.concretegames.Board;
+import com.hr.fer.zemris.parpro.cf.eval.wire.EvaluationRequest;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection speaking the original protocol, in which the whole game is sent
+ * with Java serialization for every move. Deserializing whatever a client
+ * sends is unsafe and slow, so servers accept it only when told to.
+ *
+ * <p>
+ * The framing is kept as it always was: a boolean, the game, the max depth
+ * and the move. Requests carry no ids, they are all given id 0, and no time
+ * budget. Clients of this protocol
+ * wait for every response before sending the next request, so responses
+ * can't get out of order.
+ * </p>
+ *
+ * @author marko
+ */
+class ObjectStreamRequestChannel implements RequestChannel {
+
+    private final SocketChannel channel;
+    private final ObjectOutputStream outToClient;
+    private final ObjectInputStream inFromClient;
+
+    /**
+     * @param channel accepted connection in blocking mode
+     * @param peeked bytes already read from the connection, ready to be read
+     * @throws IOException if the stream headers can't be exchanged
+     */
+    ObjectStreamRequestChannel(SocketChannel channel, ByteBuffer peeked) throws IOException {
+        this.channel = channel;
+        outToClient = new ObjectOutputStream(Channels.newOutputStream(channel));
+        outToClient.flush();
+        inFromClient = new ObjectInputStream(
+                Channels.newInputStream(new PrefixedChannel(peeked, channel)));
+    }
+
+    @Override
+    public EvaluationRequest readRequest() throws IOException {
+        // first boolean from communication tells us weather there is more data to be sent
+        if (!inFromClient.readBoolean()) {
+            return null;
+        }
+        try {
+            Game<Board, Integer, String> game =
+                    (Game<Board, Integer, String>) inFromClient.readObject();
+            int maxDepth = inFromClient.readInt();
+            Integer move = (Integer) inFromClient.readObject();
+            // the protocol has no time budget, the search goes to max depth
+            return new EvaluationRequest(0, game, maxDepth, 0,
+                    new int[]{game.getMoveIndex(move)});
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new ProtocolException("Unexpected object: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void writeResult(int id, double[] evals) throws IOException {
+        outToClient.writeDouble(evals[0]);
+        outToClient.flush();
+    }
+
+    @Override
+    public void writeError(int id) throws IOException {
+        // there's no way to tell the client, dropping the connection at least
+        // doesn't leave it waiting forever
+        throw new ProtocolException("Errors can't be reported in the legacy protocol.");
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
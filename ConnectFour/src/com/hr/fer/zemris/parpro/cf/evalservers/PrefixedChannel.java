@@ -0,0 +1,49 @@
+package com.hr.fer.zemris.parpro.cf.evalservers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel giving back the bytes peeked from a connection before reading on
+ * from the connection itself.
+ *
+ * @author marko
+ */
+class PrefixedChannel implements ReadableByteChannel {
+
+    private final ByteBuffer prefix;
+    private final ReadableByteChannel channel;
+
+    /**
+     * @param prefix peeked bytes, ready to be read
+     * @param channel connection they were read from
+     */
+    PrefixedChannel(ByteBuffer prefix, ReadableByteChannel channel) {
+        this.prefix = prefix;
+        this.channel = channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!prefix.hasRemaining()) {
+            return channel.read(dst);
+        }
+        int cnt = 0;
+        while (prefix.hasRemaining() && dst.hasRemaining()) {
+            dst.put(prefix.get());
+            cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
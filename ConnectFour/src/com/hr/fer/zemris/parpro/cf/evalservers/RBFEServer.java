@@ -3,82 +3,273 @@ package com.hr.fer.zemris.parpro.cf.evalservers;
 import com.hr.fer.zemris.parpro.cf.concretegames.Board;
 import com.hr.fer.zemris.parpro.cf.Game;
 import com.hr.fer.zemris.parpro.cf.eval.exceptions.DuringEvaluationException;
+import com.hr.fer.zemris.parpro.cf.eval.exceptions.EvaluatorCloseException;
 import com.hr.fer.zemris.parpro.cf.eval.core.Evaluator;
-import com.hr.fer.zemris.parpro.cf.eval.core.BruteForceEvaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.EvaluatorKind;
+import com.hr.fer.zemris.parpro.cf.eval.core.SharedTranspositionTable;
+import com.hr.fer.zemris.parpro.cf.eval.core.TranspositionTable;
+import com.hr.fer.zemris.parpro.cf.eval.wire.EvaluationRequest;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Evaluation server serving any number of clients at the same time.
+ *
+ * <p>
+ * Connections are handled by a {@link SelectorFrontEnd}, a few I/O threads
+ * are enough for any number of them. Searches run on a fixed pool of
+ * evaluation threads, by default one per core, so requests beyond the core
+ * count queue up instead of oversubscribing the machine. Each result is sent
+ * as soon as it is ready, requests pipelined on one connection are therefore
+ * evaluated concurrently and answered out of order.
+ * </p>
+ *
+ * <p>
+ * Results of fixed depth requests are kept in a {@link ResultCache} shared by
+ * all the clients, positions any client already asked about aren't searched
+ * again.
+ * </p>
+ *
+ * <p>
+ * Clients speak the binary {@link com.hr.fer.zemris.parpro.cf.eval.wire.WireProtocol}.
+ * The original protocol based on Java serialization is recognized by its
+ * first byte and served only when the server is started with
+ * {@code --legacy}.
+ * </p>
  *
  * @author marko
  */
 public class RBFEServer {
 
-    public static void main(String[] args) throws DuringEvaluationException {
+    private static final int DEFAULT_TABLE_MB = 64;
+
+    /** I/O threads of the front end if not told otherwise */
+    public static final int DEFAULT_IO_THREAD_CNT = 2;
+
+    /** positions kept by the result cache if not told otherwise */
+    public static final int DEFAULT_RESULT_CACHE_ENTRIES = 100_000;
+
+    private final EvaluatorKind evaluatorKind;
+
+    // tables aren't thread-safe, every evaluation thread has its own; cached
+    // scores don't depend on the client, so requests still share them
+    private final ThreadLocal<TranspositionTable> table;
 
-        int portNumber;
-        if (args.length != 1) {
-            portNumber = 4444;
+    // Lazy SMP searches share one table and one pool of helpers, together
+    // with the evaluation threads they use no more than the cores
+    private final SharedTranspositionTable sharedTable;
+    private final int smpThreadCnt;
+    private final ForkJoinPool smpHelperPool;
+
+    private final ResultCache resultCache;
+
+    private final ExecutorService evaluationExecutor;
+
+    private boolean legacyAllowed;
+    private int ioThreadCnt = DEFAULT_IO_THREAD_CNT;
+
+    public RBFEServer(long tableBytes, EvaluatorKind evaluatorKind) {
+        this(tableBytes, evaluatorKind, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates the server.
+     *
+     * @param tableBytes memory of all the transposition tables together
+     * @param evaluatorKind engine evaluating the requests
+     * @param evaluationThreadCnt number of searches run at the same time
+     */
+    public RBFEServer(long tableBytes, EvaluatorKind evaluatorKind, int evaluationThreadCnt) {
+        this(tableBytes, evaluatorKind, evaluationThreadCnt, DEFAULT_RESULT_CACHE_ENTRIES);
+    }
+
+    /**
+     * Creates the server.
+     *
+     * @param tableBytes memory of all the transposition tables together
+     * @param evaluatorKind engine evaluating the requests
+     * @param evaluationThreadCnt number of searches run at the same time
+     * @param resultCacheEntries number of positions kept by the result cache
+     */
+    public RBFEServer(long tableBytes, EvaluatorKind evaluatorKind, int evaluationThreadCnt,
+            int resultCacheEntries) {
+        this.evaluatorKind = evaluatorKind;
+        resultCache = new ResultCache(resultCacheEntries, evaluatorKind.isAveraging());
+        long threadTableBytes = tableBytes / evaluationThreadCnt;
+        table = ThreadLocal.withInitial(() -> new TranspositionTable(threadTableBytes,
+                TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED));
+        evaluationExecutor = Executors.newFixedThreadPool(evaluationThreadCnt);
+
+        if (evaluatorKind == EvaluatorKind.LAZY_SMP) {
+            sharedTable = new SharedTranspositionTable(tableBytes,
+                    TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED);
+            smpThreadCnt = Math.max(1,
+                    Runtime.getRuntime().availableProcessors() / evaluationThreadCnt);
         } else {
+            sharedTable = null;
+            smpThreadCnt = 1;
+        }
+        smpHelperPool = (smpThreadCnt > 1)
+                ? new ForkJoinPool(evaluationThreadCnt * (smpThreadCnt - 1)) : null;
+    }
+
+    /**
+     * Lets clients use the Java serialization protocol.
+     *
+     * @param legacyAllowed whether the old protocol is accepted
+     */
+    public void setLegacyAllowed(boolean legacyAllowed) {
+        this.legacyAllowed = legacyAllowed;
+    }
+
+    public void setIoThreadCnt(int ioThreadCnt) {
+        this.ioThreadCnt = ioThreadCnt;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public static void main(String[] args) {
+
+        boolean legacyAllowed = Arrays.asList(args).contains("--legacy");
+        List<String> positional = new ArrayList<>(Arrays.asList(args));
+        positional.remove("--legacy");
+        args = positional.toArray(new String[positional.size()]);
+
+        int portNumber = 4444;
+        if (args.length >= 1) {
             portNumber = Integer.parseInt(args[0]);
         }
+        int tableMB = DEFAULT_TABLE_MB;
+        if (args.length >= 2) {
+            tableMB = Integer.parseInt(args[1]);
+        }
+        EvaluatorKind evaluatorKind = EvaluatorKind.BRUTE_FORCE;
+        if (args.length >= 3) {
+            evaluatorKind = EvaluatorKind.fromName(args[2]);
+        }
+        int evaluationThreadCnt = Runtime.getRuntime().availableProcessors();
+        if (args.length >= 4) {
+            evaluationThreadCnt = Integer.parseInt(args[3]);
+        }
+        int ioThreadCnt = DEFAULT_IO_THREAD_CNT;
+        if (args.length >= 5) {
+            ioThreadCnt = Integer.parseInt(args[4]);
+        }
+        int resultCacheEntries = DEFAULT_RESULT_CACHE_ENTRIES;
+        if (args.length >= 6) {
+            resultCacheEntries = Integer.parseInt(args[5]);
+        }
 
-        RBFEServer server = new RBFEServer();
+        RBFEServer server = new RBFEServer((long) tableMB << 20, evaluatorKind,
+                evaluationThreadCnt, resultCacheEntries);
+        server.setLegacyAllowed(legacyAllowed);
+        server.setIoThreadCnt(ioThreadCnt);
         server.run(portNumber);
 
     }
-    
-    public void run(int portNumber) throws DuringEvaluationException {
-        try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
-            while (true) {
-                try (
-                    Socket clientSocket = serverSocket.accept();
-                    ObjectOutputStream outToClient = new ObjectOutputStream(clientSocket.getOutputStream());
-                    ObjectInputStream inFromClient = new ObjectInputStream(clientSocket.getInputStream());
-                ) {
-                    System.out.println("Starting communication with " + clientSocket.toString());
-                    // first boolean from communication tells us weather there is more data to be sent
-                    while(inFromClient.readBoolean()) {
-                        System.out.println("receiving data...");
-                        
-                        Game<Board, Integer, String> game =
-                                (Game<Board, Integer, String>) inFromClient.readObject();
-                        
-                        int maxDepth = inFromClient.readInt();
-                        
-                        Integer move = (Integer) inFromClient.readObject();
-                        
-                        Evaluator<Board, Integer, String> evaluator =
-                                new BruteForceEvaluator<>(game, maxDepth);
-                        
-                        System.out.println("evaluating move...");
-                        double evaluation;
-                        try {
-                            evaluation = evaluator.evaluate(move);
-                        } catch (DuringEvaluationException ex) {
-                            Logger.getLogger(RBFEServer.class.getName()).log(Level.SEVERE, null, ex);
-                            throw new DuringEvaluationException("Local evaluator on server defects.");
-                        }
-                        
-                        System.out.println("sending evaluation back to client...");
-                        outToClient.writeDouble(evaluation);
-                        outToClient.flush();
-                        System.out.println("sent!");
-                        System.out.println();
-                    }
-                    System.out.println("Terminating communication with " + clientSocket.toString());
-                } catch (ClassNotFoundException ex) {
-                    Logger.getLogger(RBFEServer.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
 
+    public void run(int portNumber) {
+        try {
+            new SelectorFrontEnd(ioThreadCnt, this::handle, legacyAllowed).run(portNumber);
         } catch (IOException ex) {
             Logger.getLogger(RBFEServer.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            evaluationExecutor.shutdown();
+            if (smpHelperPool != null) {
+                smpHelperPool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Queues the request on the evaluation pool, it is answered once
+     * evaluated.
+     */
+    private void handle(EvaluationRequest request, SelectorFrontEnd.Responder responder) {
+        CompletableFuture
+                .supplyAsync(() -> evaluate(request), evaluationExecutor)
+                .whenComplete((evals, ex) -> {
+                    respond(responder, evals, ex);
+                    Logger.getLogger(RBFEServer.class.getName()).log(Level.FINE, "{0}", resultCache);
+                });
+    }
+
+    /**
+     * Sends the result of the evaluation, or the error it ended with.
+     */
+    private static void respond(SelectorFrontEnd.Responder responder, double[] evals,
+            Throwable ex) {
+        if (ex == null) {
+            responder.sendResult(evals);
+        } else {
+            Logger.getLogger(RBFEServer.class.getName()).log(Level.SEVERE, null,
+                    (ex instanceof CompletionException) ? ex.getCause() : ex);
+            responder.sendError();
+        }
+    }
+
+    /**
+     * Evaluates all the requested moves, in the evaluation thread calling it.
+     * Moves not found in the result cache are searched with a single
+     * evaluator. The time budget applies to every move; timed results depend
+     * on the speed of the machine, so they aren't cached.
+     */
+    private double[] evaluate(EvaluationRequest request) {
+        Game<Board, Integer, String> game = request.getGame();
+        Board board = game.getCurrState();
+        int shape = board.getRowCnt() << 8 | board.getColCnt();
+        boolean cached = request.getTimeBudgetMillis() == 0;
+
+        double[] evals = new double[request.getMoveCnt()];
+        long[] keys = new long[evals.length];
+        int missCnt = 0;
+        for (int i = 0; i < evals.length; i++) {
+            evals[i] = Double.NaN;
+            if (cached) {
+                game.makeMove(request.getMoveIndex(i));
+                keys[i] = game.getCanonicalPositionKey();
+                game.unmakeMove();
+                evals[i] = resultCache.get(keys[i], shape, request.getMaxDepth());
+            }
+            if (Double.isNaN(evals[i])) {
+                missCnt++;
+            }
+        }
+        if (missCnt == 0) {
+            return evals;
+        }
+
+        // Lazy SMP doesn't use the per-thread tables, they aren't allocated
+        TranspositionTable threadTable = (sharedTable == null) ? table.get() : null;
+        try (Evaluator<Board, Integer, String> evaluator = evaluatorKind.create(
+                game, request.getMaxDepth(), threadTable, sharedTable, smpThreadCnt,
+                smpHelperPool)) {
+            for (int i = 0; i < evals.length; i++) {
+                if (!Double.isNaN(evals[i])) {
+                    continue;
+                }
+                if (cached) {
+                    evals[i] = evaluator.evaluate(request.getMove(i));
+                    resultCache.put(keys[i], shape, request.getMaxDepth(), evals[i]);
+                } else {
+                    evals[i] = evaluator.evaluateWithin(request.getMove(i),
+                            request.getTimeBudgetMillis());
+                }
+            }
+        } catch (DuringEvaluationException | EvaluatorCloseException ex) {
+            throw new CompletionException(ex);
         }
+        return evals;
     }
 }
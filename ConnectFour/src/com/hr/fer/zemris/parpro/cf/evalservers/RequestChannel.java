@@ -0,0 +1,45 @@
+package com.hr.fer.zemris.parpro.cf.evalservers;
+
+import com.hr.fer.zemris.parpro.cf.eval.wire.EvaluationRequest;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Server end of a blocking connection with a single client.
+ *
+ * <p>
+ * Responses may be written from any thread, also while another thread is
+ * waiting for the next request, and in any order.
+ * </p>
+ *
+ * @author marko
+ */
+interface RequestChannel extends Closeable {
+
+    /**
+     * Waits for the next request.
+     *
+     * @return the request, null if the client has no more data
+     * @throws IOException if reading fails or the request is malformed
+     */
+    EvaluationRequest readRequest() throws IOException;
+
+    /**
+     * Sends the evaluations of the requested moves.
+     *
+     * @param id id of the request
+     * @param evals evaluations, in the order the moves were requested
+     * @throws IOException if writing fails
+     */
+    void writeResult(int id, double[] evals) throws IOException;
+
+    /**
+     * Tells the client the request couldn't be evaluated.
+     *
+     * @param id id of the request
+     * @throws IOException if writing fails, or the protocol can't report
+     *         errors and the connection has to be dropped
+     */
+    void writeError(int id) throws IOException;
+
+}
@@ -0,0 +1,156 @@
+package com.hr.fer.zemris.parpro.cf.evalservers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evaluations of moves, shared by all the requests a server gets.
+ *
+ * <p>
+ * The value of a move depends only on the position it leads to and on the
+ * search depth, so results are kept by the canonical key of that position.
+ * Transpositions and mirrored positions reached by different clients share
+ * an entry. Only the given number of positions is kept, the least recently
+ * used ones are evicted first.
+ * </p>
+ *
+ * <p>
+ * Engines taking the best move give results that hold for shallower searches
+ * too, so a result searched deeper also answers shallower requests. Averaged
+ * results change with depth: they answer only requests of the same depth,
+ * forced results (+-1) also deeper ones, the same as in the transposition
+ * tables of {@link com.hr.fer.zemris.parpro.cf.eval.core.BruteForceEvaluator}.
+ * </p>
+ *
+ * <p>
+ * Lookups are rare compared to the searches they save, so the cache is
+ * simply locked.
+ * </p>
+ *
+ * @author marko
+ */
+public class ResultCache {
+
+    private final Map<Long, CachedResult> entries;
+    // the engine averages, so deeper results don't answer shallower requests
+    private final boolean averaging;
+
+    private final LongAdder hitCnt = new LongAdder();
+    private final LongAdder missCnt = new LongAdder();
+
+    /**
+     * Creates the cache.
+     *
+     * @param capacity number of positions kept
+     * @param averaging whether the results are averages, see
+     *        {@link com.hr.fer.zemris.parpro.cf.eval.core.EvaluatorKind#isAveraging()}
+     */
+    public ResultCache(int capacity, boolean averaging) {
+        this.averaging = averaging;
+        entries = new LinkedHashMap<Long, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedResult> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks the result up.
+     *
+     * @param positionKey canonical key of the position the move leads to
+     * @param shape identifies the board dimensions, keys of different boards
+     *        may coincide
+     * @param depth search depth of the request
+     * @return evaluation that stands in for a search of the depth, NaN if
+     *         there's none
+     */
+    public double get(long positionKey, int shape, int depth) {
+        CachedResult entry;
+        synchronized (entries) {
+            entry = entries.get(positionKey);
+        }
+        if (entry == null || entry.shape != shape || !isUsable(entry, depth)) {
+            missCnt.increment();
+            return Double.NaN;
+        }
+        hitCnt.increment();
+        return entry.eval;
+    }
+
+    /**
+     * Stores the result, unless the one already known stands in for it.
+     *
+     * @param positionKey canonical key of the position the move leads to
+     * @param shape identifies the board dimensions
+     * @param depth search depth of the result
+     * @param eval evaluation of the move
+     */
+    public void put(long positionKey, int shape, int depth, double eval) {
+        synchronized (entries) {
+            CachedResult old = entries.get(positionKey);
+            if (old == null || old.shape != shape || !isUsable(old, depth)) {
+                entries.put(positionKey, new CachedResult(shape, depth, eval));
+            }
+        }
+    }
+
+    /**
+     * Checks if the entry can stand in for a search of given depth.
+     */
+    private boolean isUsable(CachedResult entry, int depth) {
+        if (!averaging) {
+            return entry.depth >= depth;
+        }
+        if (entry.depth == depth) {
+            return true;
+        }
+        // forced results hold for any deeper search as well
+        return (entry.eval == 1 || entry.eval == -1) && entry.depth < depth;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCnt() {
+        return hitCnt.sum();
+    }
+
+    public long getMissCnt() {
+        return missCnt.sum();
+    }
+
+    /**
+     * Returns the share of lookups answered from the cache.
+     *
+     * @return hit rate, 0 if there were no lookups
+     */
+    public double getHitRate() {
+        long hits = hitCnt.sum();
+        long lookups = hits + missCnt.sum();
+        return (lookups == 0) ? 0 : hits / (double) lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("result cache: %d entries, %d hits, %d misses, hit rate %.3f",
+                size(), getHitCnt(), getMissCnt(), getHitRate());
+    }
+
+    private static class CachedResult {
+
+        private final int shape;
+        private final int depth;
+        private final double eval;
+
+        CachedResult(int shape, int depth, double eval) {
+            this.shape = shape;
+            this.depth = depth;
+            this.eval = eval;
+        }
+    }
+}
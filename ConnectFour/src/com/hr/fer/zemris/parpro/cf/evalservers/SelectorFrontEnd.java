@@ -0,0 +1,451 @@
+package com.hr.fer.zemris.parpro.cf.evalservers;
+
+import com.hr.fer.zemris.parpro.cf.eval.wire.EvaluationRequest;
+import com.hr.fer.zemris.parpro.cf.eval.wire.WireProtocol;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Network front end of the evaluation servers.
+ *
+ * <p>
+ * Connections are non-blocking and shared by a few I/O threads, each with its
+ * own {@link Selector}. The I/O threads only assemble the frames of the
+ * {@link WireProtocol} and hand the complete requests to the
+ * {@link RequestHandler}, which passes them on to whatever does the
+ * evaluations. An idle connection costs a buffer and a selection key, not a
+ * thread, so the number of clients isn't bounded by the number of threads.
+ * Responses are queued by the evaluating threads and written by the I/O
+ * thread of the connection.
+ * </p>
+ *
+ * <p>
+ * Clients of the Java serialization protocol, if allowed, need blocking
+ * streams. Their connections are taken off the selector and served by a
+ * thread each, one request at a time.
+ * </p>
+ *
+ * @author marko
+ */
+public class SelectorFrontEnd {
+
+    /**
+     * Receives the requests.
+     */
+    public interface RequestHandler {
+
+        /**
+         * Takes the request over. Called in an I/O thread, so it must not
+         * block; the responder may be called from any thread once the
+         * request is evaluated.
+         *
+         * @param request received request
+         * @param responder sends the response to the request
+         */
+        void handle(EvaluationRequest request, Responder responder);
+    }
+
+    /**
+     * Sends the response to a single request.
+     */
+    public interface Responder {
+
+        void sendResult(double[] evals);
+
+        void sendError();
+    }
+
+    private final RequestHandler handler;
+    private final boolean legacyAllowed;
+    private final IoThread[] ioThreads;
+    private final ExecutorService legacyExecutor;
+
+    private final AtomicInteger connectionCnt = new AtomicInteger();
+
+    /**
+     * Creates the front end, it starts working once {@link #run(int)} is
+     * called.
+     *
+     * @param ioThreadCnt number of I/O threads
+     * @param handler receiver of the requests
+     * @param legacyAllowed whether clients may use Java serialization
+     * @throws IOException if the selectors can't be opened
+     */
+    public SelectorFrontEnd(int ioThreadCnt, RequestHandler handler, boolean legacyAllowed)
+            throws IOException {
+        this.handler = handler;
+        this.legacyAllowed = legacyAllowed;
+        ioThreads = new IoThread[ioThreadCnt];
+        for (int i = 0; i < ioThreadCnt; i++) {
+            ioThreads[i] = new IoThread(i);
+        }
+        legacyExecutor = newConnectionExecutor();
+    }
+
+    /**
+     * Creates an executor running every task in a new virtual thread. The
+     * project targets Java 8, so the JDK 21 factory is looked up reflectively
+     * and plain threads are used when it isn't there.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Returns the number of currently open connections.
+     *
+     * @return connection count
+     */
+    public int getConnectionCnt() {
+        return connectionCnt.get();
+    }
+
+    /**
+     * Accepts connections on the port and spreads them over the I/O threads.
+     * Returns only if accepting fails, the I/O threads are stopped then.
+     *
+     * @param portNumber port to listen on
+     * @throws IOException if the port can't be bound or accepting fails
+     */
+    public void run(int portNumber) throws IOException {
+        for (IoThread ioThread : ioThreads) {
+            ioThread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(portNumber));
+            for (int next = 0; ; next = (next + 1) % ioThreads.length) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                // frames are small, waiting to fill a packet only adds latency
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connectionCnt.incrementAndGet();
+                ioThreads[next].add(new Connection(channel, ioThreads[next]));
+            }
+        } finally {
+            for (IoThread ioThread : ioThreads) {
+                ioThread.shutdown();
+            }
+            legacyExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Serves a Java serialization client in the calling thread.
+     */
+    private void serveLegacy(SocketChannel channel, ByteBuffer peeked) {
+        try (RequestChannel requestChannel = new ObjectStreamRequestChannel(channel, peeked)) {
+            EvaluationRequest request;
+            while ((request = requestChannel.readRequest()) != null) {
+                // the client waits for every response before the next request
+                CompletableFuture<Void> answered = new CompletableFuture<>();
+                handler.handle(request, new Responder() {
+                    @Override
+                    public void sendResult(double[] evals) {
+                        try {
+                            requestChannel.writeResult(0, evals);
+                            answered.complete(null);
+                        } catch (IOException ex) {
+                            answered.completeExceptionally(ex);
+                        }
+                    }
+
+                    @Override
+                    public void sendError() {
+                        answered.completeExceptionally(
+                                new ProtocolException("Evaluation failed."));
+                    }
+                });
+                answered.join();
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            connectionCnt.decrementAndGet();
+        }
+    }
+
+    /**
+     * Thread multiplexing its share of the connections.
+     */
+    private final class IoThread extends Thread {
+
+        private final Selector selector;
+        // handed over by the accepting thread
+        private final Queue<Connection> added = new ConcurrentLinkedQueue<>();
+        // have responses queued by the evaluating threads
+        private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+        private volatile boolean stopped;
+
+        IoThread(int index) throws IOException {
+            super("SelectorFrontEnd I/O " + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void add(Connection connection) {
+            added.add(connection);
+            selector.wakeup();
+        }
+
+        void wantsWrite(Connection connection) {
+            writable.add(connection);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            List<Connection> handedOff = new ArrayList<>();
+            try {
+                while (!stopped) {
+                    selector.select();
+                    Connection connection;
+                    while ((connection = added.poll()) != null) {
+                        connection.register(selector);
+                    }
+                    while ((connection = writable.poll()) != null) {
+                        connection.flush();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            if (connection.read()) {
+                                handedOff.add(connection);
+                            }
+                        }
+                    }
+                    if (!handedOff.isEmpty()) {
+                        // cancelled keys are dropped by the next selection,
+                        // only then can the channels block again
+                        selector.selectNow();
+                        for (Connection legacy : handedOff) {
+                            legacy.handOff();
+                        }
+                        handedOff.clear();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+                Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Non-blocking connection with a client. Everything but the responders is
+     * used only by the I/O thread of the connection.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final IoThread ioThread;
+        private SelectionKey key;
+
+        private final ByteBuffer received =
+                ByteBuffer.allocate(Integer.BYTES + WireProtocol.MAX_FRAME_SIZE);
+        private boolean protocolKnown;
+
+        // encoded responses, ready to be written
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        // requests handed to the handler and not answered yet
+        private final AtomicInteger pendingCnt = new AtomicInteger();
+        private boolean closeRequested;
+        private boolean closed;
+
+        Connection(SocketChannel channel, IoThread ioThread) {
+            this.channel = channel;
+            this.ioThread = ioThread;
+        }
+
+        void register(Selector selector) {
+            try {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+                close();
+            }
+        }
+
+        /**
+         * Reads what has arrived and hands over the complete requests.
+         *
+         * @return true if the client turned out to speak the legacy protocol
+         *         and the connection has to be handed to a thread of its own
+         */
+        boolean read() {
+            try {
+                if (channel.read(received) < 0) {
+                    close();
+                    return false;
+                }
+                received.flip();
+                try {
+                    if (!protocolKnown && received.hasRemaining()) {
+                        protocolKnown = true;
+                        if (received.get(0) == WireProtocol.OBJECT_STREAM_MAGIC) {
+                            if (!legacyAllowed) {
+                                throw new ProtocolException("Java serialization protocol is disabled.");
+                            }
+                            key.cancel();
+                            return true;
+                        }
+                    }
+                    ByteBuffer frame;
+                    while (!closeRequested && (frame = WireProtocol.takeFrame(received)) != null) {
+                        EvaluationRequest request = WireProtocol.readRequest(frame);
+                        if (request == null) {
+                            closeRequested = true;
+                            // nothing more will be read, only responses written
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        } else {
+                            pendingCnt.incrementAndGet();
+                            handler.handle(request, responder(request.getId()));
+                        }
+                    }
+                } finally {
+                    received.compact();
+                }
+                closeIfDone();
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+                close();
+            }
+            return false;
+        }
+
+        /**
+         * Continues the connection in a thread of its own, once its key is gone.
+         */
+        void handOff() {
+            try {
+                channel.configureBlocking(true);
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+                close();
+                return;
+            }
+            ByteBuffer peeked = ByteBuffer.allocate(received.position());
+            received.flip();
+            peeked.put(received);
+            peeked.flip();
+            legacyExecutor.execute(() -> serveLegacy(channel, peeked));
+        }
+
+        private Responder responder(int id) {
+            return new Responder() {
+                @Override
+                public void sendResult(double[] evals) {
+                    ByteBuffer response =
+                            ByteBuffer.allocate(Integer.BYTES + WireProtocol.MAX_FRAME_SIZE);
+                    WireProtocol.writeResponse(response, id, evals);
+                    send(response);
+                }
+
+                @Override
+                public void sendError() {
+                    ByteBuffer response =
+                            ByteBuffer.allocate(Integer.BYTES + WireProtocol.MAX_FRAME_SIZE);
+                    WireProtocol.writeErrorResponse(response, id);
+                    send(response);
+                }
+            };
+        }
+
+        private void send(ByteBuffer response) {
+            // queued before the request stops counting as pending, so the
+            // connection isn't closed with the response unwritten
+            responses.add(response);
+            pendingCnt.decrementAndGet();
+            ioThread.wantsWrite(this);
+        }
+
+        /**
+         * Writes as much of the queued responses as the socket takes.
+         */
+        void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                ByteBuffer response;
+                while ((response = responses.peek()) != null) {
+                    channel.write(response);
+                    if (response.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    responses.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                closeIfDone();
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+                close();
+            }
+        }
+
+        private void closeIfDone() {
+            if (closeRequested && pendingCnt.get() == 0 && responses.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connectionCnt.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(SelectorFrontEnd.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -17,5 +17,16 @@ public class Const {
     public final static int TERMINATE = 103;
     public final static int TASK_COMPLETED = 104;
     public final static int SESSION_FINISHED = 105;
+    // sequence number of a batch in the session, followed by task keys
+    public final static int TASK_CANCEL = 106;
+    
+    public final static long WORKER_TABLE_BYTES = 64L << 20;
+    // Lazy SMP threads of a worker; usually every core runs a worker already
+    public final static int WORKER_SMP_THREAD_CNT = 1;
+
+    // most tasks granted in one message
+    public final static int MAX_BATCH_SIZE = 64;
+    // work a single grant should keep a worker busy with
+    public final static long TARGET_BATCH_MILLIS = 50;
     
 }
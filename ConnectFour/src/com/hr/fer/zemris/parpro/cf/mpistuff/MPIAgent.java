@@ -1,5 +1,8 @@
 package com.hr.fer.zemris.parpro.cf.mpistuff;
 
+import com.hr.fer.zemris.parpro.cf.eval.core.EvaluatorKind;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -11,9 +14,34 @@ public abstract class MPIAgent {
         if (rank == 0) {
             return new Master(rank, size, args);
         } else {
-            return new Worker(rank, size);
+            return new Worker(rank, size, args);
         }
     }
     
+    /**
+     * Returns the application arguments that aren't options, those starting
+     * with <code>--</code> are left out.
+     */
+    static List<String> getPositionalArgs(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            }
+        }
+        return positional;
+    }
+
+    /**
+     * Returns the local engine of the workers, picked by the first positional
+     * argument (if any). The master needs it too, it values the top of the
+     * tree the same way.
+     */
+    static EvaluatorKind getEvaluatorKind(String[] args) {
+        List<String> positional = getPositionalArgs(args);
+        return positional.isEmpty()
+                ? EvaluatorKind.BRUTE_FORCE : EvaluatorKind.fromName(positional.get(0));
+    }
+    
     public abstract void run();
 }
@@ -9,14 +9,15 @@ import mpi.*;
  */
 public class MPIEvaluator {
     public static void main(String[] args) {       
-        MPI.Init(args);
+        // MPJ consumes its own arguments, only the application ones are left
+        String[] appArgs = MPI.Init(args);
 
         int rank = MPI.COMM_WORLD.Rank();
         int size = MPI.COMM_WORLD.Size();
 
         MPI.COMM_WORLD.Barrier();
 
-        MPIAgent agent = MPIAgent.createMPIAgent(rank, size, args);
+        MPIAgent agent = MPIAgent.createMPIAgent(rank, size, appArgs);
         agent.run();
 
         MPI.Finalize();
@@ -2,19 +2,21 @@ package com.hr.fer.zemris.parpro.cf.mpistuff;
 
 import com.hr.fer.zemris.parpro.cf.concretegames.Board;
 import com.hr.fer.zemris.parpro.cf.Game;
-import com.hr.fer.zemris.parpro.cf.evalservers.RBFEServer;
+import com.hr.fer.zemris.parpro.cf.eval.core.IterativeDeepening;
+import com.hr.fer.zemris.parpro.cf.eval.wire.EvaluationRequest;
+import com.hr.fer.zemris.parpro.cf.evalservers.SelectorFrontEnd;
 import static com.hr.fer.zemris.parpro.cf.mpistuff.Const.*;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Stack;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import mpi.MPI;
@@ -31,78 +33,137 @@ public class Master extends MPIAgent {
     
     private final int port = 4444;
     
-    private final int masterDepth = 4;
+    // tasks per worker the tree is split into, batching keeps small ones cheap
+    private static final int TASKS_PER_WORKER = 64;
+    // plies a worker searches at least
+    private static final int MIN_WORKER_DEPTH = 1;
+    // timed sessions start here, shallower ones aren't worth distributing
+    private static final int MIN_TIMED_DEPTH = 5;
+
+    // accept clients still using Java serialization
+    private final boolean legacyAllowed;
+    // the workers' engine takes the best move instead of averaging, the top
+    // of the tree is valued the same way
+    private final boolean minimax;
 
     private Game<Board, Integer, String> game;
     private int maxDepth;
     private Integer move;
     private String clientPlayer;
 
+    // subtrees estimated to be at most this large (log) become tasks
+    private double splitLogSize;
+    // tasks the split gives, duplicates included
+    private int expectedTaskCnt;
+
+    private final MessageWaiter waiter = new MessageWaiter();
+
+    // statistics of the current session, used for picking the batch sizes
+    private int batchCnt;
+    private long doneTaskCnt;
+    private double busyMillis;
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
 
     public Master(int rank, int size, String[] args) {
         this.rank = rank;
         this.size = size;
+        legacyAllowed = Arrays.asList(args).contains("--legacy");
+        minimax = !getEvaluatorKind(args).isAveraging();
     }
 
     @Override
     public void run() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("server created: " + serverSocket.getLocalPort()); 
-            while (true) {                
-                try (
-                    Socket clientSocket = serverSocket.accept();
-                    ObjectOutputStream outToClient = new ObjectOutputStream(clientSocket.getOutputStream());
-                    ObjectInputStream inFromClient = new ObjectInputStream(clientSocket.getInputStream());
-                ) {
-                    System.out.println("***************************************");
-                    System.out.println("Starting communication with " + clientSocket.toString());
-                    System.out.println("***************************************");
-                    System.out.println();
-                    // first boolean from communication tells us weather there is more data to be sent
-                    while(inFromClient.readBoolean()) {
-                        System.out.println("receiving data...");
-                        
-                        game = (Game<Board, Integer, String>) inFromClient.readObject();
-                        
-                        maxDepth = inFromClient.readInt();
-                        
-                        move = (Integer) inFromClient.readObject();
-                        
-                        System.out.println("evaluating move...");
-                        
-                        long startTime = System.currentTimeMillis();
-                        double evaluation = performEvalSession();
-                        long stopTime = System.currentTimeMillis();
-                        
-                        long elapsedTime = stopTime - startTime;
-                        System.out.println("eval. time = " + elapsedTime);
-                        
-                        System.out.println("sending evaluation back to client...");
-                        outToClient.writeDouble(evaluation);
-                        outToClient.flush();
-                        System.out.println("sent!");
-                        System.out.println();
-                        System.out.println();
-                    }
-                    System.out.println("########################################");
-                    System.out.println("Terminating communication with " + clientSocket.toString());
-                    System.out.println("########################################");
-                    System.out.println();
-                } catch (ClassNotFoundException ex) {
-                    Logger.getLogger(RBFEServer.class.getName()).log(Level.SEVERE, null, ex);
+        // the front end only queues the requests, MPI is used from this
+        // thread alone
+        BlockingQueue<ClientRequest> requests = new LinkedBlockingQueue<>();
+        Thread frontEndThread;
+        try {
+            SelectorFrontEnd frontEnd = new SelectorFrontEnd(1,
+                    (request, responder) -> requests.add(new ClientRequest(request, responder)),
+                    legacyAllowed);
+            frontEndThread = new Thread(() -> {
+                try {
+                    frontEnd.run(port);
+                } catch (IOException ex) {
+                    Logger.getLogger(Master.class.getName()).log(Level.SEVERE, null, ex);
                 }
-            }
-
+            }, "Master front end");
+            frontEndThread.start();
+            System.out.println("server created: " + port);
         } catch (IOException ex) {
-            Logger.getLogger(RBFEServer.class.getName()).log(Level.SEVERE, null, ex);
+            Logger.getLogger(Master.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+
+        try {
+            while (frontEndThread.isAlive() || !requests.isEmpty()) {
+                ClientRequest clientRequest = requests.poll(1, TimeUnit.SECONDS);
+                if (clientRequest == null) {
+                    continue;
+                }
+                EvaluationRequest request = clientRequest.request;
+                System.out.println("receiving data...");
+
+                game = request.getGame();
+                long timeBudgetMillis = request.getTimeBudgetMillis();
+
+                System.out.println("evaluating " + request.getMoveCnt() + " move(s)...");
+
+                long startTime = System.currentTimeMillis();
+                double[] evals = new double[request.getMoveCnt()];
+                for (int i = 0; i < evals.length; i++) {
+                    maxDepth = request.getMaxDepth();
+                    move = request.getMove(i);
+                    evals[i] = (timeBudgetMillis > 0)
+                            ? performTimedEvalSessions(timeBudgetMillis)
+                            : performEvalSession();
+                }
+                long stopTime = System.currentTimeMillis();
+
+                long elapsedTime = stopTime - startTime;
+                System.out.println("eval. time = " + elapsedTime);
+
+                System.out.println("sending evaluation back to client...");
+                clientRequest.responder.sendResult(evals);
+                System.out.println("sent!");
+                System.out.println();
+                System.out.println();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
         
         performEvalSession();
              
     }
     
+    /**
+     * Iterative deepening over whole evaluation sessions, see
+     * {@link IterativeDeepening}. A running session can't be interrupted.
+     */
+    private double performTimedEvalSessions(long timeBudgetMillis) {
+        Board board = game.getCurrState();
+        int emptyCells = board.getRowCnt() * board.getColCnt()
+                - board.getPosition().getDiscCnt();
+
+        // searching deeper than the number of empty cells changes nothing,
+        // and forced results don't change with depth
+        return IterativeDeepening.deepen(MIN_TIMED_DEPTH, Math.max(MIN_TIMED_DEPTH, emptyCells),
+                timeBudgetMillis,
+                depth -> {
+                    maxDepth = depth;
+                    double eval = performEvalSession();
+                    System.out.println("depth " + depth + " done");
+                    return eval;
+                },
+                eval -> TopTree.isForced(eval, minimax));
+    }
+    
     private double performEvalSession() {
-        int workerDepth = maxDepth - masterDepth;
+        long sessionStart = System.nanoTime();
+        long cpuStart = threadBean.getCurrentThreadCpuTime();
+        waiter.reset();
 
         clientPlayer = game.getCurrPlayer();
 
@@ -111,161 +172,278 @@ public class Master extends MPIAgent {
         cfBuff[0] = game;
         MPI.COMM_WORLD.Bcast(cfBuff, 0, 1, MPI.OBJECT, MASTER_RANK);
 
-        // send depth to each worker
-        int[] workerDepthBuff = new int[1];
-        workerDepthBuff[0] = workerDepth;
-        MPI.COMM_WORLD.Bcast(workerDepthBuff, 0, 1, MPI.INT, MASTER_RANK);
+        // send depth to each worker, a task is searched to the depth left
+        // after its move path
+        int[] maxDepthBuff = new int[1];
+        maxDepthBuff[0] = maxDepth;
+        MPI.COMM_WORLD.Bcast(maxDepthBuff, 0, 1, MPI.INT, MASTER_RANK);
 
-        Queue<Task> taskPool = new LinkedList<>();
-        populateTasks(move, masterDepth, taskPool);
+        chooseSplit(TASKS_PER_WORKER * (size - 1));
+        // results are passed up the top tree as they come, tasks are made
+        // while the workers already search the first ones
+        TopTree tree = new TopTree(game, clientPlayer, minimax);
+        TaskStream taskStream = new TaskStream(game, move, maxDepth, this::isTask, tree);
+        boolean streamDone = false;
+        long firstGrantMillis = -1;
 
-        int taskCnt = taskPool.size();
-
-        Map<Integer, Task> workerToTaskMap = new HashMap<>();
-        Map<Task, Double> taskToEvalMap = new HashMap<>();
+        // batches granted to a worker, in the order its results come back
+        Map<Integer, Queue<GrantedBatch>> workerToBatchesMap = new HashMap<>();
+        // grants per worker, numbering the batches
+        int[] grantCnts = new int[size];
+        int pendingTaskCnt = 0;
+        int cancelledCnt = 0;
+        int seenCutoffCnt = 0;
         Queue<Integer> requestingWorkers = new LinkedList<>();
-        
-        while (!(requestingWorkers.size() == size - 1 && taskPool.isEmpty())) {
-            Status status = MPI.COMM_WORLD.Iprobe(MPI.ANY_SOURCE, MPI.ANY_TAG);
-            if (status != null) {
-                switch (status.tag) {
-                    case TASK_REQUEST:
-                        MPI.COMM_WORLD.Recv(DUMMY_BUFF, 0, 0, MPI.INT, status.source, TASK_REQUEST);
-                        requestingWorkers.add(status.source);
-                        break;
-                    case TASK_COMPLETED:
-                        double[] evalBuff = new double[1];
-                        MPI.COMM_WORLD.Recv(evalBuff, 0, 1, MPI.DOUBLE, status.source, TASK_COMPLETED);
-                        double eval = evalBuff[0];
-                        Task completedTask = workerToTaskMap.remove(status.source);
-                        if (taskToEvalMap.containsKey(completedTask)) {
-                            System.out.println("IMPOSSIBLE!");
-                            System.out.println("Task completed!");
-                            System.out.println("task:");
-                            System.out.println(completedTask);
-                            System.out.println("eval: " + eval);
+        double[] evalBuff = new double[MAX_BATCH_SIZE + 1];
+        batchCnt = 0;
+        doneTaskCnt = 0;
+        busyMillis = 0;
+
+        // workers ask for the next batch before computing the current one, so
+        // a request from every worker doesn't mean all the results are in
+        while (!(requestingWorkers.size() == size - 1 && pendingTaskCnt == 0
+                && (streamDone || tree.isDone()))) {
+            // nothing to do until some worker reports
+            Status status = waiter.await(MPI.ANY_SOURCE, MPI.ANY_TAG);
+            switch (status.tag) {
+                case TASK_REQUEST:
+                    MPI.COMM_WORLD.Recv(DUMMY_BUFF, 0, 0, MPI.INT, status.source, TASK_REQUEST);
+                    requestingWorkers.add(status.source);
+                    break;
+                case TASK_COMPLETED:
+                    // evaluations of the batch, followed by the time spent on it
+                    Status received = MPI.COMM_WORLD.Recv(evalBuff, 0, evalBuff.length,
+                            MPI.DOUBLE, status.source, TASK_COMPLETED);
+                    int evalCnt = received.Get_count(MPI.DOUBLE) - 1;
+                    GrantedBatch completed = workerToBatchesMap.get(status.source).remove();
+                    for (int i = 0; i < evalCnt; i++) {
+                        // cancelled tasks come back as NaN
+                        if (Double.isNaN(evalBuff[i])) {
+                            cancelledCnt++;
+                        } else {
+                            tree.putResult(completed.keys[i], evalBuff[i]);
                         }
-                        taskToEvalMap.put(completedTask, eval);
+                    }
+                    pendingTaskCnt -= evalCnt;
+                    doneTaskCnt += evalCnt;
+                    busyMillis += evalBuff[evalCnt];
+                    break;
+                default:
+                    System.err.println("Unkonwn message received!");
+                    System.exit(1);
+            }
+            while (!(requestingWorkers.isEmpty() || streamDone || tree.isDone())) {
+                int batchSize = nextBatchSize(expectedTaskCnt - tree.getTaskCnt());
+                Task[] batch = new Task[batchSize];
+                long[] batchKeys = new long[batchSize];
+                int taskCnt = 0;
+                while (taskCnt < batchSize) {
+                    Task task = taskStream.next();
+                    if (task == null) {
+                        streamDone = true;
                         break;
-                    default:
-                        System.err.println("Unkonwn message received!");
-                        System.exit(1);
+                    }
+                    batch[taskCnt] = task;
+                    batchKeys[taskCnt] = taskStream.getKey();
+                    taskCnt++;
+                }
+                if (taskCnt == 0) {
+                    break;
+                }
+                if (taskCnt < batchSize) {
+                    batch = Arrays.copyOf(batch, taskCnt);
+                    batchKeys = Arrays.copyOf(batchKeys, taskCnt);
                 }
-            }
-            while (!(requestingWorkers.isEmpty() || taskPool.isEmpty())) {
-                Task task = taskPool.remove();
                 Integer workerRank = requestingWorkers.remove();
-                workerToTaskMap.put(workerRank, task);
-                Task[] taskBuff = new Task[1];
-                taskBuff[0] = task;
-                MPI.COMM_WORLD.Send(taskBuff, 0, 1, MPI.OBJECT, workerRank, TASK_GRANT);
+                workerToBatchesMap.computeIfAbsent(workerRank, key -> new LinkedList<>())
+                        .add(new GrantedBatch(grantCnts[workerRank]++, batchKeys));
+                Task[][] batchBuff = new Task[1][];
+                batchBuff[0] = batch;
+                MPI.COMM_WORLD.Send(batchBuff, 0, 1, MPI.OBJECT, workerRank, TASK_GRANT);
+                pendingTaskCnt += taskCnt;
+                batchCnt++;
+                if (firstGrantMillis < 0) {
+                    firstGrantMillis = (System.nanoTime() - sessionStart) / 1_000_000;
+                }
             }
 
+            // a node known early makes the tasks below it irrelevant, once
+            // the move is known none of them matters
+            if ((tree.getCutoffCnt() != seenCutoffCnt || tree.isDone()) && pendingTaskCnt > 0) {
+                cancelIrrelevantTasks(tree, workerToBatchesMap);
+            }
+            seenCutoffCnt = tree.getCutoffCnt();
         }
+        taskStream.finish();
         // terminate the workers -- they are done with their job
         for (int workerRank = 1; workerRank <= size - 1; workerRank++) {
             MPI.COMM_WORLD.Send(DUMMY_BUFF, 0, 0, MPI.INT, workerRank, SESSION_FINISHED);
         }
 
-        if (taskToEvalMap.size() != taskCnt) {
-            System.out.println("task count: " + taskCnt);
-            System.out.println("results count: " + taskToEvalMap.size());
+        double eval = tree.getValue();
+        if (Double.isNaN(eval)) {
+            System.out.println("How on Earth is that possible??!!");
+            System.out.println("value of the move isn't known");
         }
-        
-        double eval = evaluateMove(move, masterDepth, taskToEvalMap);
+        System.out.println("top tree: " + tree.getCutoffCnt() + " cutoffs, "
+                + cancelledCnt + " tasks cancelled, " + tree.getCutoffStats());
+
+        // the master should be idle while the workers search
+        long sessionMillis = (System.nanoTime() - sessionStart) / 1_000_000;
+        long cpuMillis = (threadBean.getCurrentThreadCpuTime() - cpuStart) / 1_000_000;
+        System.out.println("session " + sessionMillis + " ms, master CPU " + cpuMillis
+                + " ms, waited " + waiter.getWaitMillis() + " ms in "
+                + waiter.getProbeCnt() + " probes, " + tree.getTaskCnt() + " tasks in "
+                + batchCnt + " grants, first after " + firstGrantMillis + " ms");
         return eval;
     }
-    
-    private void populateTasks(Integer move, int depth, Queue<Task> taskPool) {
-        Stack<Integer> movePath = new Stack<>();
-        populateTasksRecur(move, depth, movePath, taskPool);
-    }
 
-    private void populateTasksRecur(Integer move, int depth, Stack<Integer> movePath, Queue<Task> taskPool) {
-        if (depth == 0) {
-            Integer[] currMovePath = new Integer[movePath.size()];
-            currMovePath = movePath.toArray(currMovePath);
-            Task correspTask = new Task(currMovePath, move);
-            if (taskPool.contains(correspTask)) {
-                System.out.println("duplicate in task pool");
+    /**
+     * Cancels the granted tasks whose results don't matter anymore, one
+     * message per batch. The workers skip them if they haven't started them
+     * yet and stop them if they have.
+     */
+    private void cancelIrrelevantTasks(TopTree tree,
+            Map<Integer, Queue<GrantedBatch>> workerToBatchesMap) {
+        for (Map.Entry<Integer, Queue<GrantedBatch>> entry : workerToBatchesMap.entrySet()) {
+            for (GrantedBatch batch : entry.getValue()) {
+                // sequence number of the batch, followed by the keys
+                long[] cancelBuff = null;
+                int cancelCnt = 0;
+                for (int i = 0; i < batch.keys.length; i++) {
+                    if (batch.cancelled[i] || tree.isRelevant(batch.keys[i])) {
+                        continue;
+                    }
+                    batch.cancelled[i] = true;
+                    // a position that needs the task again gets it granted anew
+                    tree.cancel(batch.keys[i]);
+                    if (cancelBuff == null) {
+                        cancelBuff = new long[batch.keys.length + 1];
+                        cancelBuff[cancelCnt++] = batch.seq;
+                    }
+                    cancelBuff[cancelCnt++] = batch.keys[i];
+                }
+                if (cancelBuff != null) {
+                    MPI.COMM_WORLD.Send(cancelBuff, 0, cancelCnt, MPI.LONG, entry.getKey(),
+                            TASK_CANCEL);
+                }
             }
-            taskPool.add(correspTask);
-            return;
-        }
-        game.performMove(move);
-        if (game.isOver()) {
-            game.undoMove();
-            return;
-        }
-        movePath.push(move);
-        for (Integer newMove : game.getLegalMoves()) {
-            populateTasksRecur(newMove, depth - 1, movePath, taskPool);
         }
-        game.undoMove();
-        movePath.pop();
+    }
+
+    /**
+     * Picks the number of tasks for the next grant. A batch should take
+     * about {@link Const#TARGET_BATCH_MILLIS} at the task cost measured so
+     * far, so cheap tasks don't cost a message each. Towards the end of the
+     * tasks the batches shrink, every worker should get a share of what's
+     * left instead of one worker getting all of it. The tasks are made as
+     * they are granted, so the remaining count is estimated.
+     */
+    private int nextBatchSize(int remainingCnt) {
+        // until the first results come in, the cost is unknown
+        int costBased = (doneTaskCnt == 0) ? 1
+                : (int) Math.min(MAX_BATCH_SIZE, TARGET_BATCH_MILLIS * doneTaskCnt
+                        / Math.max(busyMillis, 1.0));
+        int fairShare = remainingCnt / (2 * (size - 1));
+        return Math.max(1, Math.min(Math.min(costBased, fairShare), remainingCnt));
     }
     
-    private double evaluateMove(Integer move, int depth, Map<Task, Double> taskToEvalMap) {
-        Stack<Integer> movePath = new Stack<>();
-        return evaluateRecursively(move, depth, movePath, taskToEvalMap);
+    /**
+     * Estimates the size of the tree below a move of the current position
+     * from the branching here, counting only the plies the board still has
+     * room for. Filled columns and endgames give smaller estimates.
+     *
+     * @param depth plies to be searched
+     * @return natural logarithm of the estimated number of nodes
+     */
+    private double estimateLogSize(int depth) {
+        Board board = game.getCurrState();
+        int emptyCells = board.getRowCnt() * board.getColCnt()
+                - board.getPosition().getDiscCnt();
+        int branching = Long.bitCount(game.getLegalMoveMask());
+        return Math.min(depth, emptyCells) * Math.log(Math.max(branching, 1));
     }
 
-    private double evaluateRecursively(Integer move, int depth,
-            Stack<Integer> movePath, Map<Task, Double> taskToEvalMap) {
-        if (depth == 0) {
-            Integer[] currMovePath = new Integer[movePath.size()];
-            currMovePath = movePath.toArray(currMovePath);
-            Task correspTask = new Task(currMovePath, move);
-            if (!taskToEvalMap.containsKey(correspTask)) {
-                System.out.println("How on Earth is that possible??!!");
-                System.out.println(correspTask);
-            }
-            return taskToEvalMap.get(correspTask);
+    /**
+     * Decides whether the move at the end of the path is given to a worker
+     * or expanded further by the master. The tree is split unevenly, so every
+     * task is about the same estimated size and there are about
+     * {@link #TASKS_PER_WORKER} per worker, whatever the depth and position.
+     */
+    private boolean isTask(int pathLength) {
+        int depth = maxDepth - pathLength;
+        return depth <= MIN_WORKER_DEPTH || estimateLogSize(depth) <= splitLogSize;
+    }
+
+    /**
+     * Sets the split so that the move is divided into at least the given
+     * number of tasks, if the tree is large enough. The estimates are rough
+     * where the tree narrows, so the split is refined by counting the tasks
+     * it gives, which is cheap next to the session.
+     */
+    private void chooseSplit(int targetTaskCnt) {
+        // the count also sizes the batches, so it goes somewhat past the target
+        int limit = 8 * targetTaskCnt;
+        splitLogSize = estimateLogSize(maxDepth) - Math.log(targetTaskCnt);
+        expectedTaskCnt = countTasks(move, 0, limit);
+        // below zero only the minimal worker depth ends the split
+        while (expectedTaskCnt < targetTaskCnt && splitLogSize >= 0) {
+            // halve the size of the tasks
+            splitLogSize -= Math.log(2);
+            expectedTaskCnt = countTasks(move, 0, limit);
         }
+    }
 
-        game.performMove(move);
-        if (game.isOver()) {
-            game.undoMove();
-            if (game.getCurrPlayer().equals(clientPlayer)) {
-                return 1;
-            } else {
-                return -1;
-            }
+    /**
+     * Counts the tasks the move is split into, stopping at the limit.
+     * Tasks searching the same position are counted separately.
+     */
+    private int countTasks(Integer move, int pathLength, int limit) {
+        if (isTask(pathLength)) {
+            return 1;
         }
-        movePath.push(move);
-        double totalEval = 0;
-        boolean allLose = true;
-        boolean allWin = true;
-        List<Integer> legalMoves = game.getLegalMoves();
-        for (Integer newMove : legalMoves) {
-            double eval = evaluateRecursively(newMove, depth - 1, movePath, taskToEvalMap);
-            if (eval > -1) {
-                allLose = false;
+        game.makeMove(game.getMoveIndex(move));
+        int taskCnt = 0;
+        if (!game.isOver()) {
+            for (long rest = game.getLegalMoveMask(); rest != 0 && taskCnt < limit; rest &= rest - 1) {
+                Integer newMove = game.getMove(Long.numberOfTrailingZeros(rest));
+                taskCnt += countTasks(newMove, pathLength + 1, limit - taskCnt);
             }
-            if (eval != 1) {
-                allWin = false;
-            }
-            if (eval == 1 && game.getCurrPlayer().equals(clientPlayer)) {
-                game.undoMove();
-                movePath.pop();
-                return 1;
-            }
-            if (eval == -1 && !game.getCurrPlayer().equals(clientPlayer)) {
-                game.undoMove();
-                movePath.pop();
-                return -1;
-            }
-            totalEval += eval;
         }
-        game.undoMove();
-        movePath.pop();
-        if (allWin) {
-            return 1;
+        game.unmakeMove();
+        return taskCnt;
+    }
+
+    /**
+     * Batch granted to a worker and not yet answered. Batches are numbered
+     * per worker in the order they are granted, cancels name the batch they
+     * concern, since a task may be granted again in a later one.
+     */
+    private static class GrantedBatch {
+
+        private final int seq;
+        private final long[] keys;
+        private final boolean[] cancelled;
+
+        GrantedBatch(int seq, long[] keys) {
+            this.seq = seq;
+            this.keys = keys;
+            cancelled = new boolean[keys.length];
         }
-        if (allLose) {
-            return -1;
+    }
+
+    /**
+     * Request waiting for the workers, together with the way to answer it.
+     */
+    private static class ClientRequest {
+
+        private final EvaluationRequest request;
+        private final SelectorFrontEnd.Responder responder;
+
+        ClientRequest(EvaluationRequest request, SelectorFrontEnd.Responder responder) {
+            this.request = request;
+            this.responder = responder;
         }
-        return totalEval / (double) legalMoves.size();
     }
 
 }
@@ -0,0 +1,89 @@
+package com.hr.fer.zemris.parpro.cf.mpistuff;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import mpi.MPI;
+import mpi.Status;
+
+/**
+ * Waits for incoming messages without keeping a core busy.
+ *
+ * <p>
+ * Polling with {@code Iprobe} in a tight loop burns a whole core for as long
+ * as the rank is idle, taking it away from the searches running next to it.
+ * The waiter polls with adaptive backoff instead: a few quick polls for
+ * messages that are about to arrive (a grant right after a request), then
+ * polls separated by yielding, then by sleeps doubling up to
+ * {@link #MAX_SLEEP_NANOS}. A message arriving during a sleep is noticed at
+ * most that late, which is little next to the duration of a task. Blocking
+ * {@code Probe} isn't used, whether it polls internally depends on the MPI
+ * device.
+ * </p>
+ *
+ * @author marko
+ */
+class MessageWaiter {
+
+    private static final int SPIN_CNT = 64;
+    private static final int YIELD_CNT = 64;
+    private static final long MIN_SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long waitNanos;
+    private long probeCnt;
+
+    /**
+     * Waits for a message matching the source and the tag, without receiving
+     * it.
+     *
+     * @param source rank of the sender, or {@code MPI.ANY_SOURCE}
+     * @param tag message tag, or {@code MPI.ANY_TAG}
+     * @return status of the message
+     */
+    Status await(int source, int tag) {
+        long startTime = System.nanoTime();
+        long sleepNanos = MIN_SLEEP_NANOS;
+        for (int attempt = 0; ; attempt++) {
+            Status status = MPI.COMM_WORLD.Iprobe(source, tag);
+            probeCnt++;
+            if (status != null) {
+                waitNanos += System.nanoTime() - startTime;
+                return status;
+            }
+            if (attempt < SPIN_CNT) {
+                continue;
+            }
+            if (attempt < SPIN_CNT + YIELD_CNT) {
+                Thread.yield();
+                continue;
+            }
+            LockSupport.parkNanos(sleepNanos);
+            sleepNanos = Math.min(2 * sleepNanos, MAX_SLEEP_NANOS);
+        }
+    }
+
+    /**
+     * Returns the time spent waiting since the last reset.
+     *
+     * @return waiting time in milliseconds
+     */
+    long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+
+    /**
+     * Returns the number of polls since the last reset. A spinning loop polls
+     * millions of times per second of waiting, this one at most a few
+     * thousand.
+     *
+     * @return poll count
+     */
+    long getProbeCnt() {
+        return probeCnt;
+    }
+
+    void reset() {
+        waitNanos = 0;
+        probeCnt = 0;
+    }
+}
@@ -0,0 +1,172 @@
+package com.hr.fer.zemris.parpro.cf.mpistuff;
+
+/**
+ * Results of the tasks of a session, by the key of the position a task
+ * searches, together with the leaves of the top tree waiting for them. <br>
+ * Keys and evaluations are kept in primitive arrays with open addressing, so
+ * looking a task up doesn't create objects. A task added and not yet
+ * answered has NaN as its result.
+ *
+ * @author marko
+ */
+class TaskResultMap {
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private long[] keys;
+    private double[] evals;
+    private TopTree.Leaf[] leaves;
+    private boolean[] cancelled;
+    private boolean[] used;
+    private int size;
+
+    TaskResultMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Adds the leaf waiting for the task.
+     *
+     * @param key key of the position the task searches
+     * @param leaf leaf waiting for the result
+     * @return true if the task is new, false if the leaf joined a task
+     *         searching the same position
+     */
+    boolean add(long key, TopTree.Leaf leaf) {
+        int slot = find(key);
+        if (used[slot]) {
+            leaf.next = leaves[slot];
+            leaves[slot] = leaf;
+            return false;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        evals[slot] = Double.NaN;
+        leaves[slot] = leaf;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Stores the result of an added task.
+     *
+     * @param key key of the position the task searches
+     * @param eval evaluation of the task
+     * @return leaves waiting for the result, null if the task wasn't added
+     *         or already had a result
+     */
+    TopTree.Leaf put(long key, double eval) {
+        int slot = find(key);
+        if (!used[slot] || !Double.isNaN(evals[slot])) {
+            return null;
+        }
+        evals[slot] = eval;
+        return leaves[slot];
+    }
+
+    /**
+     * Returns the result of the task.
+     *
+     * @param key key of the position the task searches
+     * @return evaluation, NaN if the task isn't answered
+     */
+    double get(long key) {
+        int slot = find(key);
+        return used[slot] ? evals[slot] : Double.NaN;
+    }
+
+    /**
+     * Returns the leaves waiting for the task.
+     *
+     * @param key key of the position the task searches
+     * @return first of the chained leaves, null if the task wasn't added
+     */
+    TopTree.Leaf getLeaves(long key) {
+        int slot = find(key);
+        return used[slot] ? leaves[slot] : null;
+    }
+
+    /**
+     * Marks an unanswered task as cancelled.
+     *
+     * @param key key of the position the task searches
+     * @return true if the mark was set now
+     */
+    boolean cancel(long key) {
+        int slot = find(key);
+        if (!used[slot] || cancelled[slot] || !Double.isNaN(evals[slot])) {
+            return false;
+        }
+        cancelled[slot] = true;
+        return true;
+    }
+
+    /**
+     * Clears the cancellation mark of an unanswered task.
+     *
+     * @param key key of the position the task searches
+     * @return true if the task was cancelled and has to be granted again
+     */
+    boolean uncancel(long key) {
+        int slot = find(key);
+        if (!used[slot] || !cancelled[slot] || !Double.isNaN(evals[slot])) {
+            return false;
+        }
+        cancelled[slot] = false;
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks added.
+     *
+     * @return task count
+     */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        // keys are Zobrist hashes, their low bits are spread well enough
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        double[] oldEvals = evals;
+        TopTree.Leaf[] oldLeaves = leaves;
+        boolean[] oldCancelled = cancelled;
+        boolean[] oldUsed = used;
+        allocate(2 * oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = find(oldKeys[i]);
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                evals[slot] = oldEvals[i];
+                leaves[slot] = oldLeaves[i];
+                cancelled[slot] = oldCancelled[i];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        evals = new double[capacity];
+        leaves = new TopTree.Leaf[capacity];
+        cancelled = new boolean[capacity];
+        used = new boolean[capacity];
+        size = 0;
+    }
+}
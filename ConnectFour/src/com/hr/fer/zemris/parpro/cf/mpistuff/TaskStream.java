@@ -0,0 +1,138 @@
+package com.hr.fer.zemris.parpro.cf.mpistuff;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.concretegames.Board;
+import java.util.Stack;
+import java.util.function.IntPredicate;
+
+/**
+ * Tasks of a move, made one at a time. <br>
+ * The tree below the move is walked depth first with an explicit stack, so
+ * the next task is ready as soon as it's asked for and no more than the
+ * current path is kept. The expanded positions are added to the top tree,
+ * positions where the game ends are valued right away and subtrees already
+ * known aren't entered. The moves of a node are taken in the order the tree
+ * gives them. Tasks searching a position that was already handed
+ * out aren't made again, they wait for the same result. <br>
+ * The game is left inside the tree between calls and is back at the
+ * starting position once the stream is exhausted or finished; it must not
+ * be used for anything else until then.
+ *
+ * @author marko
+ */
+class TaskStream {
+
+    private final Game<Board, Integer, String> game;
+    private final int maxDepth;
+    private final IntPredicate isTask;
+    private final TopTree tree;
+
+    private Integer rootMove;
+    private final Stack<Integer> movePath = new Stack<>();
+    // nodes of the top tree along the path
+    private final TopTree.Node[] nodes;
+    // position in the ordered moves of the node below every move of the path
+    private final int[] nextMoves;
+
+    private long key;
+
+    /**
+     * Creates the stream.
+     *
+     * @param game game in the position the move is made from
+     * @param move move split into tasks
+     * @param maxDepth length of the longest path
+     * @param isTask tells whether the move at the end of a path of the given
+     *        length is a task or is expanded further
+     * @param tree top tree of the move, empty
+     */
+    TaskStream(Game<Board, Integer, String> game, Integer move, int maxDepth,
+            IntPredicate isTask, TopTree tree) {
+        this.game = game;
+        this.rootMove = move;
+        this.maxDepth = maxDepth;
+        this.isTask = isTask;
+        this.tree = tree;
+        nodes = new TopTree.Node[maxDepth + 1];
+        nextMoves = new int[maxDepth + 1];
+    }
+
+    /**
+     * Makes the next task.
+     *
+     * @return next task, null if there are no more
+     */
+    Task next() {
+        while (true) {
+            Integer move;
+            if (rootMove != null) {
+                move = rootMove;
+                rootMove = null;
+            } else {
+                while (!movePath.isEmpty() && (nextMoves[movePath.size() - 1]
+                        == nodes[movePath.size() - 1].getMoveCnt()
+                        || tree.isSettled(nodes[movePath.size() - 1]))) {
+                    game.unmakeMove();
+                    movePath.pop();
+                }
+                if (movePath.isEmpty()) {
+                    return null;
+                }
+                TopTree.Node node = nodes[movePath.size() - 1];
+                move = game.getMove(node.getOrderedMove(nextMoves[movePath.size() - 1]++));
+            }
+
+            TopTree.Node parent = movePath.isEmpty() ? null : nodes[movePath.size() - 1];
+            int moveIndex = game.getMoveIndex(move);
+            if (isTask.test(movePath.size())) {
+                game.makeMove(moveIndex);
+                key = game.getCanonicalPositionKey();
+                game.unmakeMove();
+                if (tree.addTask(key, parent, moveIndex)) {
+                    return new Task(movePath.toArray(new Integer[movePath.size()]), move);
+                }
+                continue;
+            }
+            game.makeMove(moveIndex);
+            if (game.isOver()) {
+                boolean draw = game.isDraw();
+                game.unmakeMove();
+                double eval = 0;
+                if (!draw) {
+                    // the player who made the move won
+                    eval = game.getCurrPlayer().equals(tree.getClientPlayer())
+                            ? tree.getWinValue() : -tree.getWinValue();
+                }
+                tree.setValue(parent, moveIndex, eval);
+                continue;
+            }
+            movePath.push(move);
+            nodes[movePath.size() - 1] = tree.addNode(parent, moveIndex, movePath.size(),
+                    maxDepth - movePath.size());
+            nextMoves[movePath.size() - 1] = 0;
+        }
+    }
+
+    /**
+     * Returns the key of the last task made. Tasks leading to the same
+     * position, mirrored positions included, have the same value and the
+     * same key.
+     *
+     * @return canonical key of the position the task searches
+     */
+    long getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the game to the starting position, the remaining tasks aren't
+     * needed.
+     */
+    void finish() {
+        while (!movePath.isEmpty()) {
+            game.unmakeMove();
+            movePath.pop();
+        }
+        rootMove = null;
+    }
+}
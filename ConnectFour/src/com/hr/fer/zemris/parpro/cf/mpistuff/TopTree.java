@@ -0,0 +1,367 @@
+package com.hr.fer.zemris.parpro.cf.mpistuff;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.concretegames.Board;
+import com.hr.fer.zemris.parpro.cf.eval.core.AlphaBetaEvaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.BruteForceEvaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.CutoffStats;
+import com.hr.fer.zemris.parpro.cf.eval.core.KillerHistoryOrdering;
+import com.hr.fer.zemris.parpro.cf.eval.core.MoveOrdering;
+
+/**
+ * Part of the tree the master expands itself, valued as the results of the
+ * tasks come in. <br>
+ * Every value is passed up at once. A node is known as soon as one of its
+ * children gives a forced result for the player to move, or when all its
+ * children are known; the value is the same the whole tree would give. The
+ * rest of a known subtree doesn't matter anymore: its tasks aren't made and
+ * the ones already granted can be cancelled. <br>
+ * Nodes are valued the way the workers' engine values positions. Brute-force
+ * engines average the moves, only 1 and -1 are forced results. Alpha-beta
+ * engines take the best move for the player to move and score forced results
+ * by their distance, which grows by a ply at every node passed on the way up;
+ * after a cutoff the distance is that of the forced result found first, which
+ * may not be the shortest one. <br>
+ * Moves of a node are handed out in the order of a
+ * {@link KillerHistoryOrdering} learning from the cutoffs of the tree, so the
+ * moves likely to decide a node are searched first and fewer tasks are made
+ * or granted in vain.
+ *
+ * @author marko
+ */
+class TopTree {
+
+    private final Game<Board, Integer, String> game;
+    private final String clientPlayer;
+    // best move instead of the average
+    private final boolean minimax;
+
+    private final TaskResultMap results = new TaskResultMap();
+
+    private final MoveOrdering ordering;
+    private final CutoffStats cutoffStats = new CutoffStats();
+
+    private double value = Double.NaN;
+    // nodes known before all their children
+    private int cutoffCnt;
+
+    /**
+     * Creates the tree of a move.
+     *
+     * @param game game the move is made in
+     * @param clientPlayer player the values are for
+     * @param minimax true if the workers' engine takes the best move instead
+     *        of averaging, see {@link com.hr.fer.zemris.parpro.cf.eval.core.EvaluatorKind#isAveraging()}
+     */
+    TopTree(Game<Board, Integer, String> game, String clientPlayer, boolean minimax) {
+        this.game = game;
+        this.clientPlayer = clientPlayer;
+        this.minimax = minimax;
+        ordering = new KillerHistoryOrdering(game.getMoveIndexCnt());
+    }
+
+    /**
+     * Checks if the value is a forced win or loss.
+     *
+     * @param eval value of a move
+     * @param minimax whether the values are those of alpha-beta engines
+     * @return true if the result is forced
+     */
+    static boolean isForced(double eval, boolean minimax) {
+        if (minimax) {
+            return AlphaBetaEvaluator.getPlyToMate(eval) != 0;
+        }
+        return eval == 1 || eval == -1;
+    }
+
+    /**
+     * Returns the value of a move winning the game right away, for the
+     * player making it.
+     *
+     * @return value of the win
+     */
+    double getWinValue() {
+        return minimax ? AlphaBetaEvaluator.getMateScore(1) : 1;
+    }
+
+    /**
+     * Adds a node for the current position of the game.
+     *
+     * @param parent node the position is reached from, null at the root
+     * @param moveIndex index of the move reaching the position
+     * @param ply number of moves made since the root position, the move
+     *        of the tree included
+     * @param depth remaining depth at the position
+     * @return added node, its moves ordered
+     */
+    Node addNode(Node parent, int moveIndex, int ply, int depth) {
+        Node node = new Node(parent, moveIndex, ply, depth, game.getLegalMoveMask(),
+                game.getCurrPlayer().equals(clientPlayer), game.getMoveIndexCnt());
+        node.moveCnt = ordering.order(node.legalMoves, ply, node.orderedMoves);
+        return node;
+    }
+
+    /**
+     * Adds a task for a move of the node.
+     *
+     * @param key key of the position the task searches
+     * @param parent node the move is made in, null if the root is a task
+     * @param moveIndex index of the move
+     * @return true if the task has to be granted, false if a task searching
+     *         the same position already was
+     */
+    boolean addTask(long key, Node parent, int moveIndex) {
+        if (results.add(key, new Leaf(parent, moveIndex))) {
+            return true;
+        }
+        double eval = results.get(key);
+        if (!Double.isNaN(eval)) {
+            setValue(parent, moveIndex, eval);
+            return false;
+        }
+        // the task may have been cancelled while this position still needs it
+        return results.uncancel(key);
+    }
+
+    /**
+     * Stores the result of a task and passes it up.
+     *
+     * @param key key of the position the task searched
+     * @param eval evaluation of the task
+     */
+    void putResult(long key, double eval) {
+        for (Leaf leaf = results.put(key, eval); leaf != null; leaf = leaf.next) {
+            setValue(leaf.parent, leaf.moveIndex, eval);
+        }
+    }
+
+    /**
+     * Passes the value of a move up the tree.
+     *
+     * @param node node the move is made in, null at the root
+     * @param moveIndex index of the move
+     * @param eval value of the move
+     */
+    void setValue(Node node, int moveIndex, double eval) {
+        while (node != null) {
+            if (node.known) {
+                return;
+            }
+            node.evals[moveIndex] = eval;
+            node.unknownCnt--;
+            // a forced win for the player to move
+            boolean cutoff = isForced(eval, minimax) && (eval > 0) == node.clientToMove;
+            if (cutoff) {
+                if (node.unknownCnt > 0) {
+                    cutoffCnt++;
+                }
+                cutoffStats.cutoff(node.getOrderIndex(moveIndex));
+                ordering.cutoff(moveIndex, node.ply, node.depth);
+            } else if (node.unknownCnt > 0) {
+                return;
+            } else {
+                cutoffStats.noCutoff();
+                eval = combine(node);
+            }
+            node.known = true;
+            if (minimax) {
+                // the move reaching the node
+                eval = AlphaBetaEvaluator.addPly(eval);
+            }
+            moveIndex = node.moveIndex;
+            node = node.parent;
+        }
+        value = eval;
+    }
+
+    private double combine(Node node) {
+        if (minimax) {
+            double best = node.clientToMove ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            for (long rest = node.legalMoves; rest != 0; rest &= rest - 1) {
+                double eval = node.evals[Long.numberOfTrailingZeros(rest)];
+                best = node.clientToMove ? Math.max(best, eval) : Math.min(best, eval);
+            }
+            return best;
+        }
+        boolean allLose = true;
+        boolean allWin = true;
+        for (long rest = node.legalMoves; rest != 0; rest &= rest - 1) {
+            double eval = node.evals[Long.numberOfTrailingZeros(rest)];
+            if (eval > -1) {
+                allLose = false;
+            }
+            if (eval != 1) {
+                allWin = false;
+            }
+        }
+        if (allWin) {
+            return 1;
+        }
+        if (allLose) {
+            return -1;
+        }
+        // same summation order as in the workers' evaluators
+        return BruteForceEvaluator.average(game, node.legalMoves, node.evals);
+    }
+
+    /**
+     * Checks if the node or one of the nodes above it is known.
+     *
+     * @param node node, null for the root
+     * @return true if the values below the node don't matter anymore
+     */
+    boolean isSettled(Node node) {
+        if (isDone()) {
+            return true;
+        }
+        for (; node != null; node = node.parent) {
+            if (node.known) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the result of the task still matters somewhere in the tree.
+     *
+     * @param key key of the position the task searches
+     * @return true if the task is needed
+     */
+    boolean isRelevant(long key) {
+        for (Leaf leaf = results.getLeaves(key); leaf != null; leaf = leaf.next) {
+            if (!isSettled(leaf.parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the task as cancelled, so a position needing it later gets it
+     * granted again.
+     *
+     * @param key key of the position the task searches
+     * @return true if the mark was set now
+     */
+    boolean cancel(long key) {
+        return results.cancel(key);
+    }
+
+    boolean isDone() {
+        return !Double.isNaN(value);
+    }
+
+    /**
+     * Returns the value of the move.
+     *
+     * @return value, NaN if it isn't known yet
+     */
+    double getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the number of distinct tasks added.
+     *
+     * @return task count
+     */
+    int getTaskCnt() {
+        return results.size();
+    }
+
+    String getClientPlayer() {
+        return clientPlayer;
+    }
+
+    /**
+     * Returns the number of nodes known before all their children were.
+     * When it grows, some granted tasks may have become irrelevant.
+     *
+     * @return cutoff count
+     */
+    int getCutoffCnt() {
+        return cutoffCnt;
+    }
+
+    /**
+     * Returns the statistics of the cutoffs by the position of the deciding
+     * move in the order the moves were handed out.
+     *
+     * @return cutoff statistics
+     */
+    CutoffStats getCutoffStats() {
+        return cutoffStats;
+    }
+
+    /**
+     * Position expanded by the master.
+     */
+    static class Node {
+
+        private final Node parent;
+        private final int moveIndex;
+        private final int ply;
+        private final int depth;
+        private final long legalMoves;
+        private final boolean clientToMove;
+        private final double[] evals;
+        private int unknownCnt;
+        private boolean known;
+
+        // move indices in the order they are handed out
+        private final int[] orderedMoves;
+        private int moveCnt;
+
+        private Node(Node parent, int moveIndex, int ply, int depth, long legalMoves,
+                boolean clientToMove, int moveIndexCnt) {
+            this.parent = parent;
+            this.moveIndex = moveIndex;
+            this.ply = ply;
+            this.depth = depth;
+            this.legalMoves = legalMoves;
+            this.clientToMove = clientToMove;
+            evals = new double[moveIndexCnt];
+            unknownCnt = Long.bitCount(legalMoves);
+            orderedMoves = new int[moveIndexCnt];
+        }
+
+        int getMoveCnt() {
+            return moveCnt;
+        }
+
+        /**
+         * Returns the move handed out as <code>i</code>-th.
+         *
+         * @param i zero based position in the ordering
+         * @return move index
+         */
+        int getOrderedMove(int i) {
+            return orderedMoves[i];
+        }
+
+        private int getOrderIndex(int moveIndex) {
+            int i = 0;
+            while (orderedMoves[i] != moveIndex) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Place in the tree waiting for the result of a task. Tasks searching
+     * the same position share the result, their leaves are chained.
+     */
+    static class Leaf {
+
+        private final Node parent;
+        private final int moveIndex;
+        Leaf next;
+
+        private Leaf(Node parent, int moveIndex) {
+            this.parent = parent;
+            this.moveIndex = moveIndex;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.hr.fer.zemris.parpro.cf.mpistuff;
+
+import com.hr.fer.zemris.parpro.cf.Game;
+import com.hr.fer.zemris.parpro.cf.concretegames.Board;
+import com.hr.fer.zemris.parpro.cf.concretegames.ConnectFourBuilder;
+import com.hr.fer.zemris.parpro.cf.eval.core.AlphaBetaEvaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.EvaluatorKind;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the top tree against a sequential search, without MPI. <br>
+ * Moves of random positions are split into tasks by a {@link TaskStream}
+ * the way the master splits them, and the tasks are evaluated here by the
+ * given engine, their results put into the {@link TopTree} in random order.
+ * Tasks that stop mattering are cancelled like the master cancels them. The
+ * value of every move is then compared with the one
+ * {@link com.hr.fer.zemris.parpro.cf.eval.core.BruteForceEvaluator} (or
+ * {@link AlphaBetaEvaluator} for engines that don't average) gives at the
+ * same depth.
+ *
+ * <p>
+ * Averaged values must be equal to the last bit. Alpha-beta values must be
+ * equal too, except that a forced result may come from a longer line, see
+ * {@link TopTree}.
+ * </p>
+ *
+ * @author marko
+ */
+public class TopTreeCheck {
+
+    private static final long SEED = 7;
+
+    private final EvaluatorKind evaluatorKind;
+    private final boolean minimax;
+    private final int maxDepth;
+    private final Random random = new Random(SEED);
+
+    private int exactCnt;
+    private int longerCnt;
+    private int wrongCnt;
+    private int taskCnt;
+
+    /**
+     * @param evaluatorKind engine evaluating the tasks
+     * @param maxDepth depth of the moves
+     */
+    public TopTreeCheck(EvaluatorKind evaluatorKind, int maxDepth) {
+        this.evaluatorKind = evaluatorKind;
+        this.minimax = !evaluatorKind.isAveraging();
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Checks all the moves of the given number of random positions and
+     * prints the summary.
+     *
+     * @param positionCnt number of positions
+     * @return true if every value was right
+     */
+    public boolean run(int positionCnt) {
+        for (int i = 0; i < positionCnt; i++) {
+            Game<Board, Integer, String> game = randomPosition();
+            // tasks right below the move, and up to two plies deeper
+            int split = 1 + random.nextInt(3);
+            for (Integer move : game.getLegalMoves()) {
+                checkMove(game, i, move, split);
+            }
+        }
+        System.out.println(evaluatorKind.getName() + ": " + exactCnt + " exact, "
+                + longerCnt + " longer, " + wrongCnt + " wrong, " + taskCnt + " tasks");
+        return wrongCnt == 0;
+    }
+
+    private Game<Board, Integer, String> randomPosition() {
+        Game<Board, Integer, String> game = new ConnectFourBuilder().createConnectFour();
+        int plyCnt = 6 + random.nextInt(20);
+        for (int i = 0; i < plyCnt; i++) {
+            List<Integer> moves = game.getLegalMoves();
+            game.performMove(moves.get(random.nextInt(moves.size())));
+            if (game.isOver()) {
+                // the position must still have moves
+                game.undoMove();
+                break;
+            }
+        }
+        return game;
+    }
+
+    private void checkMove(Game<Board, Integer, String> game, int positionIndex, Integer move,
+            int split) {
+        String clientPlayer = game.getCurrPlayer();
+        EvaluatorKind referenceKind = minimax
+                ? EvaluatorKind.ALPHA_BETA : EvaluatorKind.BRUTE_FORCE;
+        double expected = referenceKind.create(game, maxDepth, null)
+                .evaluate(move, clientPlayer);
+
+        // the stream keeps the game inside the tree, the tasks get a copy
+        Game<Board, Integer, String> taskGame = game.copy();
+        TopTree tree = new TopTree(game, clientPlayer, minimax);
+        TaskStream taskStream = new TaskStream(game, move, maxDepth,
+                pathLength -> pathLength >= split, tree);
+        List<Task> pendingTasks = new ArrayList<>();
+        List<Long> pendingKeys = new ArrayList<>();
+        boolean streamDone = false;
+        while (!((streamDone || tree.isDone()) && pendingTasks.isEmpty())) {
+            if (!streamDone && !tree.isDone()) {
+                Task task = taskStream.next();
+                if (task == null) {
+                    streamDone = true;
+                } else {
+                    pendingTasks.add(task);
+                    pendingKeys.add(taskStream.getKey());
+                    taskCnt++;
+                }
+            }
+            // results come back late and out of order
+            boolean canWait = !streamDone && !tree.isDone();
+            if (pendingTasks.isEmpty() || (canWait && random.nextInt(3) != 0)) {
+                continue;
+            }
+            int i = random.nextInt(pendingTasks.size());
+            Task task = pendingTasks.remove(i);
+            long key = pendingKeys.remove(i);
+            if (!tree.isRelevant(key)) {
+                tree.cancel(key);
+                continue;
+            }
+            tree.putResult(key, evaluateTask(taskGame, task, clientPlayer));
+        }
+        taskStream.finish();
+
+        double value = tree.getValue();
+        if (value == expected) {
+            exactCnt++;
+        } else if (minimax && isLongerLine(expected, value)) {
+            longerCnt++;
+        } else {
+            wrongCnt++;
+            System.out.println("wrong value of move " + move + " in position "
+                    + positionIndex + ": " + value + " instead of " + expected);
+        }
+    }
+
+    /**
+     * Evaluates the task the way a worker does.
+     */
+    private double evaluateTask(Game<Board, Integer, String> game, Task task,
+            String clientPlayer) {
+        for (Integer move : task.getMovePath()) {
+            game.performMove(move);
+        }
+        double eval = evaluatorKind.create(game, maxDepth - task.getMovePath().length, null)
+                .evaluate(task.getTargetMove(), clientPlayer);
+        for (Integer move : task.getMovePath()) {
+            game.undoMove();
+        }
+        return eval;
+    }
+
+    private static boolean isLongerLine(double expected, double value) {
+        int expectedPly = AlphaBetaEvaluator.getPlyToMate(expected);
+        int valuePly = AlphaBetaEvaluator.getPlyToMate(value);
+        return expectedPly != 0 && valuePly > expectedPly
+                && Math.signum(value) == Math.signum(expected);
+    }
+}
@@ -1,10 +1,18 @@
 package com.hr.fer.zemris.parpro.cf.mpistuff;
 
 import com.hr.fer.zemris.parpro.cf.concretegames.Board;
-import com.hr.fer.zemris.parpro.cf.eval.core.BruteForceEvaluator;
 import com.hr.fer.zemris.parpro.cf.eval.core.Evaluator;
+import com.hr.fer.zemris.parpro.cf.eval.core.EvaluatorKind;
+import com.hr.fer.zemris.parpro.cf.eval.core.SharedTranspositionTable;
+import com.hr.fer.zemris.parpro.cf.eval.core.TranspositionTable;
 import com.hr.fer.zemris.parpro.cf.Game;
 import static com.hr.fer.zemris.parpro.cf.mpistuff.Const.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import mpi.MPI;
 import mpi.Status;
 
@@ -17,9 +25,45 @@ public class Worker extends MPIAgent {
     private final int rank;
     private final int size;
 
-    public Worker(int rank, int size) {
+    private final EvaluatorKind evaluatorKind;
+
+    // lives as long as the worker, cached scores don't depend on the client
+    private final TranspositionTable table;
+
+    // Lazy SMP evaluators are made per task, the threads and their table
+    // live as long as the worker
+    private final SharedTranspositionTable sharedTable;
+    private final int smpThreadCnt;
+    private final ForkJoinPool smpHelperPool;
+
+    private final MessageWaiter waiter = new MessageWaiter();
+
+    // keys of the cancelled tasks by the sequence number of their batch in
+    // the session; cancels of a batch may come before the batch itself
+    private final Map<Integer, Set<Long>> cancelledByBatch = new HashMap<>();
+    // batches of the session evaluated so far
+    private int doneBatchCnt;
+
+    public Worker(int rank, int size, String[] args) {
         this.rank = rank;
         this.size = size;
+        this.evaluatorKind = getEvaluatorKind(args);
+        // the second positional argument (if any) is the number of Lazy SMP
+        // threads
+        List<String> positional = getPositionalArgs(args);
+        this.smpThreadCnt = (positional.size() >= 2)
+                ? Integer.parseInt(positional.get(1)) : WORKER_SMP_THREAD_CNT;
+        if (evaluatorKind == EvaluatorKind.LAZY_SMP) {
+            this.table = null;
+            this.sharedTable = new SharedTranspositionTable(WORKER_TABLE_BYTES,
+                    TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED);
+        } else {
+            this.table = new TranspositionTable(WORKER_TABLE_BYTES,
+                    TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED);
+            this.sharedTable = null;
+        }
+        this.smpHelperPool = (sharedTable != null && smpThreadCnt > 1)
+                ? new ForkJoinPool(smpThreadCnt - 1) : null;
     }
 
     @Override
@@ -30,26 +74,35 @@ public class Worker extends MPIAgent {
 
             Game<Board, Integer, String> game = cfBuff[0];
 
-            int[] workerDepthBuff = new int[1];
-            MPI.COMM_WORLD.Bcast(workerDepthBuff, 0, 1, MPI.INT, MASTER_RANK);
-            int workerDepth = workerDepthBuff[0];
+            int[] maxDepthBuff = new int[1];
+            MPI.COMM_WORLD.Bcast(maxDepthBuff, 0, 1, MPI.INT, MASTER_RANK);
+            int maxDepth = maxDepthBuff[0];
 
             String clientPlayer = game.getCurrPlayer();
+            waiter.reset();
+            cancelledByBatch.clear();
+            doneBatchCnt = 0;
+            int grantCnt = 0;
 
+            MPI.COMM_WORLD.Send(DUMMY_BUFF, 0, 0, MPI.INT, MASTER_RANK, TASK_REQUEST);
             while (true) {
-                MPI.COMM_WORLD.Send(DUMMY_BUFF, 0, 0, MPI.INT, MASTER_RANK, TASK_REQUEST);
-                Status status = null;
-                while (status == null) {
-                    status = MPI.COMM_WORLD.Iprobe(MASTER_RANK, MPI.ANY_TAG);
-                }
-                Task task = null;
+                Status status = waiter.await(MASTER_RANK, MPI.ANY_TAG);
+                Task[] batch = null;
+                int batchSeq = -1;
                 switch (status.tag) {
                     case TASK_GRANT:
-                        Task[] taskBuff = new Task[1];
-                        MPI.COMM_WORLD.Recv(taskBuff, 0, 1, MPI.OBJECT, MASTER_RANK, TASK_GRANT);
-                        task = taskBuff[0];
+                        Task[][] batchBuff = new Task[1][];
+                        MPI.COMM_WORLD.Recv(batchBuff, 0, 1, MPI.OBJECT, MASTER_RANK, TASK_GRANT);
+                        batch = batchBuff[0];
+                        // grants of a session come in order, so they are
+                        // numbered the same way as at the master
+                        batchSeq = grantCnt++;
                         // System.out.println("Worker_" + rank + ": received new task!");
                         break;
+                    case TASK_CANCEL:
+                        // concerns a batch already done or the one asked for
+                        receiveCancelled(status);
+                        continue;
                     case SESSION_FINISHED:
                         MPI.COMM_WORLD.Recv(DUMMY_BUFF, 0, 0, MPI.INT, MASTER_RANK, SESSION_FINISHED);
                         // System.out.println("Worker_" + rank + ": received instructions to terminate!");
@@ -60,31 +113,99 @@ public class Worker extends MPIAgent {
                 }
                 
                 // tell us that session has finished
-                if (task == null) {
+                if (batch == null) {
+                    System.out.println("Worker_" + rank + ": waited " + waiter.getWaitMillis()
+                            + " ms for grants in " + waiter.getProbeCnt() + " probes");
                     break;
                 }
 
-                // get the game to the appropriate state at which targetMove is analyzed
-                for (Integer move : task.getMovePath()) {
-                    game.performMove(move);
-                }
+                // ask for the next batch right away, it arrives while this
+                // one is being evaluated
+                MPI.COMM_WORLD.Send(DUMMY_BUFF, 0, 0, MPI.INT, MASTER_RANK, TASK_REQUEST);
 
-                Evaluator<Board, Integer, String> evaluator = new BruteForceEvaluator<>(game, workerDepth);
+                long startTime = System.nanoTime();
+                double[] evalBuff = new double[batch.length + 1];
+                // keys of the tasks of this batch the master doesn't need
+                Set<Long> cancelled = cancelledByBatch.computeIfAbsent(batchSeq,
+                        seq -> new HashSet<>());
+                for (int i = 0; i < batch.length; i++) {
+                    Task task = batch[i];
+                    receivePendingCancels();
 
-                // evaluate the task
-                double eval = evaluator.evaluate(task.getTargetMove(), clientPlayer);
+                    // get the game to the appropriate state at which targetMove is analyzed
+                    for (Integer move : task.getMovePath()) {
+                        game.performMove(move);
+                    }
 
-                // get the game to the original state -- undo the move path
-                for (Integer move : task.getMovePath()) {
-                    game.undoMove();
+                    game.makeMove(game.getMoveIndex(task.getTargetMove()));
+                    long key = game.getCanonicalPositionKey();
+                    game.unmakeMove();
+                    if (cancelled.contains(key)) {
+                        // skipped tasks are reported as NaN
+                        evalBuff[i] = Double.NaN;
+                    } else {
+                        // the master splits the tree unevenly, so the depth
+                        // left differs from task to task
+                        int workerDepth = maxDepth - task.getMovePath().length;
+                        Evaluator<Board, Integer, String> evaluator = evaluatorKind.create(game,
+                                workerDepth, table, sharedTable, smpThreadCnt, smpHelperPool);
+                        // a task cancelled while it runs is given up
+                        evaluator.setAbortSignal(() -> {
+                            receivePendingCancels();
+                            return cancelled.contains(key);
+                        });
+
+                        // evaluate the task
+                        evalBuff[i] = evaluator.evaluate(task.getTargetMove(), clientPlayer);
+                        if (cancelled.contains(key)) {
+                            evalBuff[i] = Double.NaN;
+                        }
+                    }
+
+                    // get the game to the original state -- undo the move path
+                    for (Integer move : task.getMovePath()) {
+                        game.undoMove();
+                    }
                 }
+                cancelledByBatch.remove(batchSeq);
+                doneBatchCnt++;
+                // the master sizes the batches by the time they take
+                evalBuff[batch.length] = (System.nanoTime() - startTime) / 1e6;
 
-                // send the resulting evaluation to the master
-                double[] evalBuff = new double[1];
-                evalBuff[0] = eval;
-                MPI.COMM_WORLD.Send(evalBuff, 0, 1, MPI.DOUBLE, MASTER_RANK, TASK_COMPLETED);
+                // send the resulting evaluations to the master
+                MPI.COMM_WORLD.Send(evalBuff, 0, evalBuff.length, MPI.DOUBLE, MASTER_RANK, TASK_COMPLETED);
 
             }
         }
     }
+
+    /**
+     * Receives all the cancels that have arrived.
+     */
+    private void receivePendingCancels() {
+        Status status;
+        while ((status = MPI.COMM_WORLD.Iprobe(MASTER_RANK, TASK_CANCEL)) != null) {
+            receiveCancelled(status);
+        }
+    }
+
+    /**
+     * Receives the keys of cancelled tasks, preceded by the sequence number
+     * of the batch they belong to. A key granted again in a later batch
+     * isn't affected. Tasks not yet started are skipped, running searches
+     * give up if the evaluator can stop.
+     */
+    private void receiveCancelled(Status status) {
+        long[] cancelBuff = new long[status.Get_count(MPI.LONG)];
+        MPI.COMM_WORLD.Recv(cancelBuff, 0, cancelBuff.length, MPI.LONG, MASTER_RANK, TASK_CANCEL);
+        int batchSeq = (int) cancelBuff[0];
+        if (batchSeq < doneBatchCnt) {
+            // the results are sent already
+            return;
+        }
+        Set<Long> cancelled = cancelledByBatch.computeIfAbsent(batchSeq, seq -> new HashSet<>());
+        for (int i = 1; i < cancelBuff.length; i++) {
+            cancelled.add(cancelBuff[i]);
+        }
+    }
 }